@@ -25,35 +25,74 @@ import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.message.BasicHeader;
 import org.apache.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.*;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.xcontent.XContentType;
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.retry.CircuitBreaker;
+import com.increff.commons.retry.RetryPolicy;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Log4j
 public class ESClient {
+	private static int BULK_RETRY_MAX_COUNT = 3;
+	private static int BREAKER_FAILURE_COUNT = 5;
+	private static int BREAKER_BASE_OPEN_TIME = 100; // 100 milliseconds
+	private static int BREAKER_MAX_OPEN_TIME = 5_000; // 5 seconds
+	private static int PENDING_POLL_TIME = 10; // 10 milliseconds
+
 	private RestHighLevelClient client;
 
-	private ActionListener<IndexResponse> actionListener;
+	// null unless enableBulk has been called
+	private BulkProcessor bulkProcessor;
+
+	// items that failed in a bulk and are waiting to be added to the next one, with their attempt count
+	private Queue<DocWriteRequest<?>> bulkRetries;
+	private Map<DocWriteRequest<?>, Integer> bulkAttempts;
+	// start time of the bulks in flight, by execution id
+	private Map<Long, Long> bulkStartNanos;
 
 	private ESMetrics metrics;
 
+	// documents sent and not answered yet, including bulk items waiting in the processor or for a retry
+	private final AtomicInteger numPending = new AtomicInteger();
+
+	private volatile IESIndexRouter indexRouter;
+
+	// fed by the responses of the async calls, used by ESManager to hold back requests while ES is failing
+	private volatile CircuitBreaker breaker;
+
 	private final static Logger LOGGER = Logger.getLogger(ESClient.class);
 
 	public ESClient(String baseUrl, int port, String user, String password) {
@@ -63,14 +102,15 @@ public class ESClient {
 				new UsernamePasswordCredentials(user, password));
 
 		this.metrics = new ESMetrics();
+		// daily indices in the JVM time zone, as before routers were added
+		this.indexRouter = new ESIndexRouter(ESIndexPattern.DAILY, ZoneId.systemDefault());
+		this.breaker = new CircuitBreaker(BREAKER_FAILURE_COUNT,
+				new RetryPolicy(BREAKER_BASE_OPEN_TIME, BREAKER_MAX_OPEN_TIME, Integer.MAX_VALUE));
 
 		RestClientBuilder restClientBuilder = RestClient.builder(new HttpHost(baseUrl, port, "http"));
 		restClientBuilder.setHttpClientConfigCallback(getHttpClientConfig(credentialsProvider)).setDefaultHeaders(compatibilityHeaders());
 
 		this.client = new RestHighLevelClient(restClientBuilder);
-
-
-		setupListener();
 	}
 
 	private Header[] compatibilityHeaders() {
@@ -91,49 +131,263 @@ public class ESClient {
         };
     }
 
-    // Listener for post call action
-	private void setupListener() {
-		actionListener = new ActionListener<IndexResponse>() {
+	// Listener for post call action, one per call so that it knows when the call started
+	private class IndexListener implements ActionListener<IndexResponse> {
+
+		private final long startNanos = System.nanoTime();
+
+		@Override
+		public void onResponse(IndexResponse indexResponse) {
+			metrics.recordSendLatency(System.nanoTime() - startNanos);
+			breaker.onSuccess();
+			metrics.addNumProcessed(1);
+			metrics.addNumSuccess(1);
+			numPending.decrementAndGet();
+		}
+
+		@Override
+		public void onFailure(Exception e) {
+			metrics.recordSendLatency(System.nanoTime() - startNanos);
+			// the document is not sent again, whatever the failure
+			boolean retryable = onCallFailure(e);
+			metrics.addNumProcessed(1);
+			metrics.addNumDropped(retryable ? DropReason.SEND_FAILED : DropReason.REJECTED, 1);
+			numPending.decrementAndGet();
+
+			String errorStackTrace = getErrorStackTraceString(e);
+			LOGGER.info("EsClient:RuntimeException: Unable to connect/send message to ElasticSearch\n" + errorStackTrace);
+		}
+	}
+
+	// eg. new ESIndexRouter(ESIndexPattern.ALIAS, zone) when the indices are managed by ILM rollover
+	public void setIndexRouter(IESIndexRouter indexRouter) {
+		this.indexRouter = indexRouter;
+	}
+
+	/*
+	 * Collects index requests into bulk requests instead of sending one request per document. A bulk is sent
+	 * when it has bulkActions documents, bulkBytes bytes or every flushIntervalMs, with at most
+	 * concurrentRequests bulks in flight (send blocks when that many are outstanding).
+	 *
+	 * Bulk items that fail with 429 or 5xx are added to a later bulk, up to BULK_RETRY_MAX_COUNT times, other
+	 * failures are counted as dropped. A bulk in which nothing succeeded counts against the circuit breaker,
+	 * so ESManager holds back while ES keeps rejecting. The BulkProcessor does not retry by itself: its retry
+	 * puts the retried items after the others in the response, and they could not be matched to their
+	 * requests anymore.
+	 */
+	public synchronized void enableBulk(int bulkActions, long bulkBytes, long flushIntervalMs, int concurrentRequests) {
+		if (bulkProcessor != null) {
+			return;
+		}
+		bulkRetries = new ConcurrentLinkedQueue<>();
+		bulkAttempts = Collections.synchronizedMap(new IdentityHashMap<>());
+		bulkStartNanos = new ConcurrentHashMap<>();
+		bulkProcessor = BulkProcessor.builder(
+				(request, bulkListener) -> client.bulkAsync(request, RequestOptions.DEFAULT, bulkListener),
+				getBulkListener(), "es-client-bulk")
+				.setBulkActions(bulkActions)
+				.setBulkSize(new ByteSizeValue(bulkBytes, ByteSizeUnit.BYTES))
+				.setFlushInterval(TimeValue.timeValueMillis(flushIntervalMs))
+				.setConcurrentRequests(concurrentRequests)
+				.setBackoffPolicy(BackoffPolicy.noBackoff())
+				.build();
+	}
+
+	private BulkProcessor.Listener getBulkListener() {
+		return new BulkProcessor.Listener() {
 			@Override
-			public void onResponse(IndexResponse indexResponse) {
-				metrics.addNumProcessed(1);
-				metrics.addNumSuccess(1);
+			public void beforeBulk(long executionId, BulkRequest request) {
+				bulkStartNanos.put(executionId, System.nanoTime());
 			}
 
 			@Override
-			public void onFailure(Exception e) {
-				metrics.addNumProcessed(1);
-				metrics.addNumDropped(1);
+			public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+				recordBulkLatency(executionId);
+				// items are in the order of the requests, there is no retry in the processor
+				BulkItemResponse[] items = response.getItems();
+				boolean anySuccess = false;
+				boolean anyRetryable = false;
+				for (int i = 0; i < items.length; i++) {
+					DocWriteRequest<?> itemRequest = request.requests().get(i);
+					if (!items[i].isFailed()) {
+						anySuccess = true;
+						bulkAttempts.remove(itemRequest);
+						metrics.addNumProcessed(1);
+						metrics.addNumSuccess(1);
+						numPending.decrementAndGet();
+						continue;
+					}
+					int status = items[i].getFailure().getStatus().getStatus();
+					boolean retryable = status == 429 || status >= 500;
+					anyRetryable |= retryable;
+					onBulkItemFailure(itemRequest, retryable, items[i].getFailureMessage());
+				}
+				// like onCallFailure, only rejected documents still mean ES is up
+				if (anySuccess || !anyRetryable) {
+					breaker.onSuccess();
+				} else {
+					breaker.onFailure();
+				}
+			}
 
-				String errorStackTrace = getErrorStackTraceString(e);
-				LOGGER.info("EsClient:RuntimeException: Unable to connect/send message to ElasticSearch\n" + errorStackTrace);
+			@Override
+			public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+				recordBulkLatency(executionId);
+				// the whole bulk failed eg. connection refused, all items are worth retrying
+				breaker.onFailure();
+				for (DocWriteRequest<?> itemRequest : request.requests()) {
+					onBulkItemFailure(itemRequest, true, failure.getMessage());
+				}
 			}
 		};
 	}
 
+	private void recordBulkLatency(long executionId) {
+		Long startNanos = bulkStartNanos.remove(executionId);
+		if (startNanos != null) {
+			metrics.recordSendLatency(System.nanoTime() - startNanos);
+		}
+	}
+
+	private void onBulkItemFailure(DocWriteRequest<?> itemRequest, boolean retryable, String message) {
+		Integer attempts = bulkAttempts.get(itemRequest);
+		attempts = attempts == null ? 1 : attempts + 1;
+		if (retryable && attempts <= BULK_RETRY_MAX_COUNT) {
+			// re-added from the sending thread, adding from this callback can block on the in-flight limit
+			bulkAttempts.put(itemRequest, attempts);
+			bulkRetries.add(itemRequest);
+			metrics.addNumRetried(1);
+			return;
+		}
+		bulkAttempts.remove(itemRequest);
+		metrics.addNumProcessed(1);
+		metrics.addNumDropped(retryable ? DropReason.RETRIES_EXHAUSTED : DropReason.REJECTED, 1);
+		numPending.decrementAndGet();
+		LOGGER.info("EsClient:BulkItemFailure: Dropping document for index " + itemRequest.index() + "\n" + message);
+	}
+
+	// A rejected document means ES is up, only failures that can succeed on retry count against the breaker.
+	// Returns whether the failure is retryable
+	private boolean onCallFailure(Exception e) {
+		int status = 0;
+		if (e instanceof ElasticsearchException) {
+			status = ((ElasticsearchException) e).status().getStatus();
+		} else if (e instanceof ResponseException) {
+			status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+		}
+		if (status == 0 || RetryPolicy.isRetryable(status)) {
+			breaker.onFailure();
+			return true;
+		}
+		breaker.onSuccess();
+		return false;
+	}
+
+	CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	void setCircuitBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+
+	// Adds bulk items that failed earlier to the current bulk
+	void retryFailedBulkItems() {
+		if (bulkProcessor == null) {
+			return;
+		}
+		DocWriteRequest<?> itemRequest;
+		while ((itemRequest = bulkRetries.poll()) != null) {
+			bulkProcessor.add(itemRequest);
+		}
+	}
+
 	// This message sends an async request
 	public void send(ESRequest req) {
-		String json = null;
+		BytesReference source;
+		long startNanos = System.nanoTime();
 		try {
-			json = ESEncoder.getJson(req);
+			source = ESEncoder.getBytes(req);
 		} catch (Exception e) {
+			// retrying would fail the same way
+			metrics.addNumProcessed(1);
+			metrics.addNumDropped(DropReason.ENCODING_FAILED, 1);
 			String errorStackTrace = getErrorStackTraceString(e);
 			LOGGER.info("EsClient:IOException: Json Encoding Failed\n" + errorStackTrace);
+			return;
+		}
+		metrics.recordEncodeLatency(System.nanoTime() - startNanos);
+		metrics.addNumBytes(source.length());
+
+		IndexRequest request = new IndexRequest(indexRouter.getIndex(req));
+		request.source(source, XContentType.JSON);
+
+		numPending.incrementAndGet();
+		if (bulkProcessor != null) {
+			retryFailedBulkItems();
+			bulkProcessor.add(request);
+			return;
 		}
+		client.indexAsync(request, RequestOptions.DEFAULT, new IndexListener());
+	}
 
-		IndexRequest request = new IndexRequest(req.getApplication() + "-" + LocalDate.now());
-		request.source(json, XContentType.JSON);
+	// Documents sent that have no answer yet
+	public int getNumPending() {
+		return numPending.get();
+	}
 
-		client.indexAsync(request, RequestOptions.DEFAULT, actionListener);
+	// Sends the current bulk and the bulk items waiting for a retry now, instead of on the flush interval
+	public void flush() {
+		if (bulkProcessor != null) {
+			retryFailedBulkItems();
+			bulkProcessor.flush();
+		}
+	}
+
+	// Waits up to timeoutMs until every document sent got its answer, flushing bulks and retries meanwhile.
+	// Returns false if some are still pending
+	public boolean awaitPending(long timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while (numPending.get() > 0) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			flush();
+			try {
+				Thread.sleep(PENDING_POLL_TIME);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
 	}
 
+	// Closes the connections right away, documents in flight get no answer. Use close(timeoutMs) to wait for them
 	public void close() {
+		close(0);
+	}
+
+	// Waits up to timeoutMs for the documents in flight, see awaitPending, and then closes the connections.
+	// Returns the number of documents that got no answer in time
+	public int close(long timeoutMs) {
+		awaitPending(timeoutMs);
+		try {
+			if (bulkProcessor != null) {
+				// only the empty bulk is left, unless the wait timed out
+				bulkProcessor.awaitClose(0, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		int unfinished = numPending.get();
 		try {
 			client.close();
 		} catch (IOException e) {
 			String errorStackTrace = getErrorStackTraceString(e);
 			LOGGER.info("EsClient:IOException: Failed to close client\n" + errorStackTrace);
 		}
+		return unfinished;
 	}
 
 	public ESMetrics getMetrics() {
@@ -162,7 +416,6 @@ public class ESClient {
 			return list;
 		} catch (IOException e) {
 			LOGGER.error("EsClient:IOException: Error while searching\n" + e.getMessage(), e);
-			System.out.println(e.getMessage());
 		}
 		return new ArrayList<>();
 
@@ -14,16 +14,33 @@
 
 package com.increff.commons.es;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.time.ZoneId;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 
+/*
+ * getBytes writes the document as UTF-8 straight into the byte array that the IndexRequest then uses as
+ * its source, instead of building a String that ElasticSearch encodes again. getJson is kept for logging.
+ *
+ * Timestamps are written in UTC in the same format as LocalDateTime.toString, which the existing indices
+ * already hold, but from the epoch seconds of the timestamp, without any zone lookup, conversion or
+ * String. Missing timestamps and status are written as null.
+ */
 public class ESEncoder {
 
     private final static JsonFactory jsonFactory;
+    // a document is mostly its string fields, this is for the rest
+    private static final int FIXED_SIZE = 512;
+    private static final int SECONDS_PER_DAY = 86_400;
 
     static {
         jsonFactory = new JsonFactory();
@@ -31,8 +48,18 @@ public class ESEncoder {
 
     public static String getJson(ESRequest req) throws IOException {
         StringWriter w = new StringWriter();
-        JsonGenerator g = jsonFactory.createGenerator(w);
+        write(jsonFactory.createGenerator(w), req);
+        return w.toString();
+    }
 
+    public static BytesReference getBytes(ESRequest req) throws IOException {
+        DocumentOutput out = new DocumentOutput(estimateSize(req));
+        write(jsonFactory.createGenerator(out, JsonEncoding.UTF8), req);
+        return out.toBytesReference();
+    }
+
+    private static void write(JsonGenerator g, ESRequest req) throws IOException {
+        char[] buf = new char[32];
         g.writeStartObject();
 
         g.writeStringField("application", req.getApplication());
@@ -41,20 +68,116 @@ public class ESEncoder {
         g.writeStringField("url", req.getUrl());
         g.writeStringField("client", req.getClient());
 
-        g.writeStringField("timestamp", req.getTimestamp().withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime().toString());
+        writeTimestamp(g, "timestamp", req.getTimestamp(), buf);
         g.writeStringField("request_name", req.getRequestName());
         g.writeNumberField("duration_millis", req.getDurationInMillis());
-        g.writeStringField("status", req.getStatus().name());
+        g.writeStringField("status", req.getStatus() == null ? null : req.getStatus().name());
         g.writeStringField("requestBody", req.getRequestBody());
         g.writeStringField("responseBody", req.getResponseBody());
         g.writeStringField("http_headers", req.getHttpHeaders());
         g.writeStringField("http_status", req.getHttpStatus());
-        g.writeStringField("end_timestamp", req.getEndTimestamp().withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime().toString());
+        writeTimestamp(g, "end_timestamp", req.getEndTimestamp(), buf);
         g.writeStringField("http_method", req.getHttpMethod());
         g.writeStringField("response_headers", req.getResponseHeaders());
         g.writeStringField("transactionId", req.getTransactionId());
         g.writeStringField("remarks", req.getRemarks());
         g.close();
-        return w.toString();
+    }
+
+    private static void writeTimestamp(JsonGenerator g, String field, ZonedDateTime t, char[] buf) throws IOException {
+        g.writeFieldName(field);
+        if (t == null) {
+            g.writeNull();
+            return;
+        }
+        long epochSecond = t.toEpochSecond();
+        long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+        int secondOfDay = (int) Math.floorMod(epochSecond, SECONDS_PER_DAY);
+        int len = formatUtc(epochDay, secondOfDay, t.getNano(), buf);
+        if (len < 0) {
+            // years outside 0000-9999 have a sign, let java.time deal with them
+            g.writeString(LocalDateTime.ofEpochSecond(epochSecond, t.getNano(), ZoneOffset.UTC).toString());
+            return;
+        }
+        g.writeString(buf, 0, len);
+    }
+
+    // Formats like LocalDateTime.toString: yyyy-MM-ddTHH:mm, then :ss and .SSS / .SSSSSS / .SSSSSSSSS
+    // only if needed. Returns the length, or -1 for years it does not handle
+    static int formatUtc(long epochDay, int secondOfDay, int nano, char[] buf) {
+        // civil date from days since 1970-01-01, see http://howardhinnant.github.io/date_algorithms.html
+        long z = epochDay + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long doe = z - era * 146_097;
+        long yoe = (doe - doe / 1460 + doe / 36_524 - doe / 146_096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return -1;
+        }
+        int pos = 0;
+        pos = writeDigits(buf, pos, (int) year, 4);
+        buf[pos++] = '-';
+        pos = writeDigits(buf, pos, month, 2);
+        buf[pos++] = '-';
+        pos = writeDigits(buf, pos, day, 2);
+        buf[pos++] = 'T';
+        pos = writeDigits(buf, pos, secondOfDay / 3600, 2);
+        buf[pos++] = ':';
+        pos = writeDigits(buf, pos, secondOfDay / 60 % 60, 2);
+        int second = secondOfDay % 60;
+        if (second > 0 || nano > 0) {
+            buf[pos++] = ':';
+            pos = writeDigits(buf, pos, second, 2);
+            if (nano > 0) {
+                buf[pos++] = '.';
+                if (nano % 1_000_000 == 0) {
+                    pos = writeDigits(buf, pos, nano / 1_000_000, 3);
+                } else if (nano % 1_000 == 0) {
+                    pos = writeDigits(buf, pos, nano / 1_000, 6);
+                } else {
+                    pos = writeDigits(buf, pos, nano, 9);
+                }
+            }
+        }
+        return pos;
+    }
+
+    private static int writeDigits(char[] buf, int pos, int value, int numDigits) {
+        for (int i = pos + numDigits - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + numDigits;
+    }
+
+    // Bodies are often JSON themselves, and every quote in them is escaped, hence the extra quarter
+    private static int estimateSize(ESRequest req) {
+        int size = length(req.getApplication()) + length(req.getHost()) + length(req.getModule())
+                + length(req.getUrl()) + length(req.getClient()) + length(req.getRequestName())
+                + length(req.getRequestBody()) + length(req.getResponseBody()) + length(req.getHttpHeaders())
+                + length(req.getHttpStatus()) + length(req.getHttpMethod()) + length(req.getResponseHeaders())
+                + length(req.getTransactionId()) + length(req.getRemarks());
+        return FIXED_SIZE + size + size / 4;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    // Hands its array to ElasticSearch as it is. The IndexRequest is sent asynchronously and holds on
+    // to it, so these are not reused
+    private static class DocumentOutput extends ByteArrayOutputStream {
+
+        private DocumentOutput(int size) {
+            super(size);
+        }
+
+        private BytesReference toBytesReference() {
+            return new BytesArray(buf, 0, count);
+        }
     }
 }
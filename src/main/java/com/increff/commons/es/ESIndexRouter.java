@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.es;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Routes documents by application and the current day or hour in an explicit time zone.
+ *
+ * Index names are cached per application for the current period, along with the time at which the
+ * period ends. So routing a document is a clock read, a compare and a map lookup. The first document
+ * after the boundary starts a new period with an empty cache, which is a handful of names at most.
+ *
+ * Documents go by the time they are sent, not their own timestamp, the same as before.
+ */
+public class ESIndexRouter implements IESIndexRouter {
+
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH");
+
+    private final ESIndexPattern pattern;
+    private final Clock clock;
+    private volatile Period period;
+
+    public ESIndexRouter(ESIndexPattern pattern, ZoneId zone) {
+        this(pattern, Clock.system(zone));
+    }
+
+    ESIndexRouter(ESIndexPattern pattern, Clock clock) {
+        this.pattern = pattern;
+        this.clock = clock;
+        this.period = newPeriod(clock.millis());
+    }
+
+    public String getIndex(ESRequest req) {
+        String application = String.valueOf(req.getApplication());
+        Period p = period;
+        long now = clock.millis();
+        if (now >= p.endMillis) {
+            p = rollover(now);
+        }
+        String index = p.indices.get(application);
+        if (index == null) {
+            index = p.suffix.isEmpty() ? application : application + "-" + p.suffix;
+            p.indices.put(application, index);
+        }
+        return index;
+    }
+
+    private synchronized Period rollover(long now) {
+        Period p = period;
+        if (now >= p.endMillis) {
+            p = newPeriod(now);
+            period = p;
+        }
+        return p;
+    }
+
+    private Period newPeriod(long now) {
+        ZoneId zone = clock.getZone();
+        ZonedDateTime time = Instant.ofEpochMilli(now).atZone(zone);
+        switch (pattern) {
+        case HOURLY:
+            ZonedDateTime hour = time.truncatedTo(ChronoUnit.HOURS);
+            return new Period(HOUR_FORMAT.format(hour), hour.plusHours(1).toInstant().toEpochMilli());
+        case ALIAS:
+            return new Period("", Long.MAX_VALUE);
+        default:
+            LocalDate day = time.toLocalDate();
+            // not always 24 hours later, with DST
+            long end = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            return new Period(DAY_FORMAT.format(day), end);
+        }
+    }
+
+    private static class Period {
+        private final String suffix;
+        // first millisecond of the next period
+        private final long endMillis;
+        private final ConcurrentHashMap<String, String> indices;
+
+        private Period(String suffix, long endMillis) {
+            this.suffix = suffix;
+            this.endMillis = endMillis;
+            this.indices = new ConcurrentHashMap<>();
+        }
+    }
+
+}
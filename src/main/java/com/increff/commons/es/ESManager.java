@@ -15,8 +15,20 @@ package com.increff.commons.es;/*
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.increff.commons.metrics.DrainReport;
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.queue.AbstractBoundedQueue;
+import com.increff.commons.queue.BoundedQueue;
+import com.increff.commons.queue.IQueueWorker;
+import com.increff.commons.queue.PriorityBoundedQueue;
+import com.increff.commons.queue.ScheduledRunner;
+import com.increff.commons.retry.CircuitBreaker;
+import com.increff.commons.retry.RetryPolicy;
 import lombok.extern.log4j.Log4j;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
@@ -28,16 +40,28 @@ import org.springframework.web.client.HttpStatusCodeException;
  * All new messages are queued, and a background thread tries to push to ELK.
  * This way calling methods are not slowed down
  *
- * If there is no space in queue, then oldest message is dropped(queue.pollFirst())
- * Then new message is put in queue.
+ * If there is no space in queue, then oldest message is dropped(queue.poll())
+ * Then new message is put in queue. The queue is lock free, so application threads calling add
+ * never wait for each other or for the sender thread.
  *
- * If a message delivery fails because of 402, 403, 404, 502 etc, then message is added to top of queue,
- * so that it is retried quickly. However, if queue is full, then that too will be dropped
+ * If a message delivery fails with 408, 429, 5xx or an unknown error, then message is added to top of queue,
+ * so that it is retried quickly, and the thread waits with exponential backoff and jitter (see RetryPolicy).
+ * It is dropped after RETRY_MAX_COUNT attempts, or if queue is full. Other 4xx are dropped right away.
  *
- *  If, there was no message, or status was 404 or 502 (given by load balancers) then the thread
- *  sleeps for RETRY_SLEEP_TIME milliseconds to avoid unnecessary loops
+ * Sending is also gated by the CircuitBreaker of the ESClient, which opens when ElasticSearch keeps failing
+ * the async index / bulk calls. While it is open, requests stay queued instead of failing one by one, and
+ * a single probe request is let through every now and then to find out when ElasticSearch is back.
+ *
+ *  If, there was no message, then the thread blocks on the queue until add wakes it up, or for at most
+ *  EMPTY_WAIT_TIME milliseconds, so new messages are sent right away without the thread spinning when idle
+ *
+ * The sender runs on a thread of its own (start), as a task of an Executor (start(Executor)), or step by
+ * step on a ScheduledExecutorService shared with other managers (startScheduled).
 
- * All ESManager methods are synchronized to ensure thread safety.
+ * shutdown(timeoutMs) stops taking requests but keeps sending until every queued request is answered by
+ * ElasticSearch (see ESClient.awaitPending), or the deadline passes. Only the rest is dropped.
+ *
+ * All ESManager methods are thread safe. Only start and stop are synchronized.
  *
 
  */
@@ -45,21 +69,40 @@ import org.springframework.web.client.HttpStatusCodeException;
 public class ESManager implements Runnable {
 
     private static int RETRY_MAX_COUNT = 10;
-    private static int RETRY_WAIT_TIME = 60_000; // 60 seconds
+    private static int RETRY_BASE_WAIT_TIME = 100; // 100 milliseconds
+    private static int RETRY_MAX_WAIT_TIME = 5_000; // 5 seconds
+    private static int UNKNOWN_ERROR_STATUS = 9999;
     private static int MAX_QUEUE_SIZE = 1000;
+    private static int RETRY_HEADROOM = 10; // slots kept free for requeued messages
     private static int EMPTY_WAIT_TIME = 1_000; // 1 second
+    private static int NUM_PRIORITIES = 3; // see getPriority
+    private static int DRAIN_POLL_TIME = 10; // 10 milliseconds
+    private static int REQUEST_OVERHEAD = 300; // field names, timestamps, status in the JSON
 
     private ESMetrics m;
     private ESClient c;
-    private LinkedBlockingDeque<ESRequest> q;
-    private boolean running;
-    private int retryCount;
+    private AbstractBoundedQueue<QueuedRequest> q;
+    private int queueCapacity = MAX_QUEUE_SIZE;
+    private long queueMaxBytes = 0; // no byte limit
+    private boolean priorityQueue;
+    private volatile boolean running;
+    // set by shutdown, add then drops requests
+    private volatile boolean closing;
+    // set while the sender has a request out of the queue but not handed to the client yet
+    private final AtomicInteger numHeld = new AtomicInteger();
     private IESLogProvider logProvider;
+    private RetryPolicy retryPolicy;
+    private final IQueueWorker sender = new Sender();
+    private ScheduledRunner runner;
+    // nanoTime before which the sender waits, after a failure. The sleep in run() is capped, so step() checks
+    // this again
+    private volatile long backoffUntilNanos;
 
     public ESManager(String baseUrl, int port, String user, String password) {
-        this.q = new LinkedBlockingDeque<>(MAX_QUEUE_SIZE);
         this.m = new ESMetrics();
+        this.q = newQueue(null);
         this.c = new ESClient(baseUrl, port, user, password);
+        this.retryPolicy = new RetryPolicy(RETRY_BASE_WAIT_TIME, RETRY_MAX_WAIT_TIME, RETRY_MAX_COUNT);
     }
 
     // FOR STARTING AND STOPPING
@@ -67,80 +110,239 @@ public class ESManager implements Runnable {
         this.logProvider = logProvider;
     }
 
+    // Must be called before start(), see ESClient.enableBulk
+    public void enableBulk(int bulkActions, long bulkBytes, long flushIntervalMs, int concurrentRequests) {
+        c.enableBulk(bulkActions, bulkBytes, flushIntervalMs, concurrentRequests);
+    }
+
+    // see ESIndexRouter
+    public void setIndexRouter(IESIndexRouter indexRouter) {
+        c.setIndexRouter(indexRouter);
+    }
+
+    // Must be called before start(). The queue then sends FAILURE, then WARNING, then SUCCESS requests,
+    // and when it is full drops the oldest request with the lowest of these instead of the oldest request
+    public synchronized void enablePriorityQueue() {
+        priorityQueue = true;
+        q = newQueue(q);
+    }
+
+    // Must be called before start(). The queue drops requests when it has maxRequests, or when their
+    // estimated size passes maxBytes, whichever comes first. Request and response bodies can be large, so this
+    // bounds the heap the queue takes. 0 for no byte limit. The default is 1000 requests of any size
+    public synchronized void setQueueCapacity(int maxRequests, long maxBytes) {
+        if (maxRequests <= RETRY_HEADROOM || maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid queue capacity, maxRequests: " + maxRequests + ", maxBytes: "
+                    + maxBytes);
+        }
+        queueCapacity = maxRequests;
+        queueMaxBytes = maxBytes;
+        q = newQueue(q);
+    }
+
+    // A queue as configured, with the requests of old
+    private AbstractBoundedQueue<QueuedRequest> newQueue(AbstractBoundedQueue<QueuedRequest> old) {
+        AbstractBoundedQueue<QueuedRequest> nq;
+        if (priorityQueue) {
+            nq = new PriorityBoundedQueue<>(queueCapacity, RETRY_HEADROOM, NUM_PRIORITIES, ESManager::getPriority);
+        } else {
+            nq = new BoundedQueue<>(queueCapacity, RETRY_HEADROOM);
+        }
+        if (queueMaxBytes > 0) {
+            nq.setMaxBytes(queueMaxBytes, ESManager::getQueuedBytes);
+        }
+        QueuedRequest req;
+        while (old != null && (req = old.poll()) != null) {
+            if (queueMaxBytes > 0 && req.bytes == 0) {
+                req.bytes = getEstimatedSize(req.req);
+            }
+            offer(nq, req);
+        }
+        return nq;
+    }
+
+    // Must be called before start()
+    public void setRetryPolicy(RetryPolicy retryPolicy, CircuitBreaker breaker) {
+        this.retryPolicy = retryPolicy;
+        c.setCircuitBreaker(breaker);
+    }
+
     public synchronized void start() {
+        start(r -> new Thread(r).start());
+    }
+
+    // Runs the sender as a task of executor instead of on a thread of its own. It blocks in the task
+    // until stop(), so executor needs a thread for it, eg. virtual threads
+    public synchronized void start(Executor executor) {
         if (!running) {
-            Thread t = new Thread(this);
-            t.start();
             running = true;
+            executor.execute(this);
+        }
+    }
+
+    // Runs the sender as short tasks on scheduler, which can be shared by many managers, see ScheduledRunner
+    public synchronized void startScheduled(ScheduledExecutorService scheduler) {
+        if (!running) {
+            running = true;
+            runner = new ScheduledRunner(scheduler, q, sender);
+            runner.wake();
         }
     }
 
     public synchronized void stop() {
         running = false;
-        ESRequest msg = null;
+        if (runner != null) {
+            runner.wake();
+            runner = null;
+        }
+        QueuedRequest msg = null;
         while (!q.isEmpty()) { // log all pending messages
             msg = getFirst();
-            dropRequest(msg);
+            dropRequest(msg, DropReason.SHUTDOWN);
+        }
+    }
+
+    // Stops taking requests, then keeps sending what is queued until all of it is answered by
+    // ElasticSearch or timeoutMs has passed. Only then is the rest dropped like stop() does, and the client
+    // closed, so the manager cannot be used anymore
+    public DrainReport shutdown(long timeoutMs) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        ESMetrics cm = c.getMetrics();
+        long numSuccess = cm.getNumSuccess();
+        long numDropped = m.getNumDropped() + cm.getNumDropped();
+        closing = true;
+        boolean timedOut = false;
+        // the queue first, the sender counts a request as held before taking it
+        while (running && !(q.isEmpty() && numHeld.get() == 0)) {
+            if (System.nanoTime() - deadline >= 0) {
+                timedOut = true;
+                break;
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_TIME);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                timedOut = true;
+                break;
+            }
         }
+        stop();
+        long remainingMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        int unfinished = c.close(remainingMs);
+        return new DrainReport(cm.getNumSuccess() - numSuccess, 0,
+                m.getNumDropped() + cm.getNumDropped() - numDropped, unfinished,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), timedOut || unfinished > 0);
     }
 
-    public synchronized boolean isRunning() {
+    public boolean isRunning() {
         return running;
     }
 
     // METRICES
-    public synchronized int getQueueSize() {
+    public int getQueueSize() {
         return q.size();
     }
 
-    public synchronized ESMetrics getMetrics() {
+    // Estimated size of the queued requests, 0 unless there is a byte limit (see setQueueCapacity)
+    public long getQueueBytes() {
+        return q.getBytes();
+    }
+
+    public ESMetrics getMetrics() {
         return m;
     }
 
+    // Metrics for responses from ElasticSearch, per document also in bulk mode
+    public ESMetrics getClientMetrics() {
+        return c.getMetrics();
+    }
+
     // FOR MANAGING MESSAGES
-    public synchronized void add(ESRequest req) {
-        // we want to keep the latest request, so remove first message if queue is full
-        if (q.remainingCapacity() < 10) {
-            ESRequest dropReq = getFirst();
-            dropRequest(dropReq);
-            log.error("Dropping ELK request: queue capacity: " + q.remainingCapacity());
-        }
-        q.offer(req);
+    public void add(ESRequest req) {
+        if (closing) {
+            dropRequest(new QueuedRequest(req), DropReason.SHUTDOWN);
+            return;
+        }
+        // we want to keep the latest request, so the queue removes the first message if it is full
+        QueuedRequest queuedReq = new QueuedRequest(req);
+        if (queueMaxBytes > 0) {
+            queuedReq.bytes = getEstimatedSize(req);
+        }
         m.addNumRecieved(1);
+        offer(q, queuedReq);
+        m.updateQueueSize(q.size());
     }
 
-    private synchronized ESRequest getFirst() {
+    // A large request can push out several small ones when there is a byte limit
+    private void offer(AbstractBoundedQueue<QueuedRequest> q, QueuedRequest req) {
+        QueuedRequest dropReq = q.offer(req);
+        while (dropReq != null) {
+            m.addNumProcessed(1);
+            dropRequest(dropReq, DropReason.QUEUE_FULL);
+            log.error("Dropping ELK request: queue size: " + q.size() + ", queue bytes: " + q.getBytes());
+            dropReq = q.evict();
+        }
+    }
+
+    private QueuedRequest getFirst() {
         // Retrieves and removes the first element of this deque, or returns null if
         // this deque is empty.
-        ESRequest r = q.pollFirst();
+        QueuedRequest r = q.poll();
         if (r != null) {
             m.addNumProcessed(+1);
         }
         return r;
     }
 
-    private synchronized void retry(ESRequest req) {
+    private void retry(QueuedRequest req) {
         // Inserts the specified element at the front of this deque if it is possible to
         // do so immediately without violating capacity restrictions,returning true upon
         // success and false if no space is currently available.
         boolean result = q.offerFirst(req);
         if (!result) {
-            dropRequest(req);
+            dropRequest(req, DropReason.QUEUE_FULL);
         } else {
             m.addNumProcessed(-1);
         }
     }
 
-    private void dropRequest(ESRequest req) {
+    private static long getQueuedBytes(QueuedRequest req) {
+        return req.bytes;
+    }
+
+    // Roughly the size of the JSON, the string fields are most of it
+    private static int getEstimatedSize(ESRequest req) {
+        return REQUEST_OVERHEAD + length(req.getApplication()) + length(req.getHost()) + length(req.getModule())
+                + length(req.getClient()) + length(req.getRequestName()) + length(req.getUrl())
+                + length(req.getRequestBody()) + length(req.getResponseBody()) + length(req.getHttpHeaders())
+                + length(req.getHttpMethod()) + length(req.getHttpStatus()) + length(req.getResponseHeaders())
+                + length(req.getTransactionId()) + length(req.getRemarks());
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private static int getPriority(QueuedRequest req) {
+        ESRequestStatus status = req.req.getStatus();
+        if (status == ESRequestStatus.FAILURE) {
+            return 0;
+        }
+        return status == ESRequestStatus.WARNING ? 1 : 2;
+    }
+
+    private void dropRequest(QueuedRequest req, DropReason reason) {
         if (req == null) {
             return;
         }
-        m.addNumDropped(1);
+        m.addNumDropped(reason, 1);
+        m.addNumDropped(req.req.getStatus(), 1);
         if (logProvider == null) {
             return;
         }
         try {
-            String json = ESEncoder.getJson(req);
+            String json = ESEncoder.getJson(req.req);
             logProvider.log(json);
         } catch (Exception e) {
             // return, cannot do much here really
@@ -148,63 +350,122 @@ public class ESManager implements Runnable {
     }
 
     public void run() {
-        // Note: We do not reset retryCount because if some message has failed even
-        // after trying for RETRY_MAX_COUNT, then it is likely that the next message
-        // will also fail. This can make the queue too large. Thus after
-        // RETRY_MAX_COUNT, it is best to keep on trying to send messages
-        // and set it to 0 only when a message has been successfully delivered
-
-        ESRequest req = null;
-        int errStatus = 0, waitTimeMs = 0;
+        long waitTimeMs;
         while (isRunning()) {
-            waitTimeMs = 0;
-            errStatus = 0;
+            waitTimeMs = sender.step();
             try {
-                req = getFirst();
-                if (req != null) {
-                    c.send(req);
-                    errStatus = 200;
-                    retryCount = 0;
-                    m.addNumSuccess(1);
+                if (waitTimeMs == IQueueWorker.IDLE) {
+                    awaitRequest();
+                    continue;
                 }
-            } catch (HttpStatusCodeException e) {
-                errStatus = e.getRawStatusCode();
-                retryCount++;
-                log.error("error in sending log to elk: request_name: " + req.getRequestName() + " error: " + e.getMessage() + Arrays.toString(e.getStackTrace()));
-            } catch (Exception e) {
-                errStatus = 9999; // Some uknown issue has happened
-                retryCount++;
-                log.error("error in sending log to elk: request_name: " + req.getRequestName() + " error: " + e.getMessage() + Arrays.toString(e.getStackTrace()));
-            }
-
-            if (errStatus == 200) {
-                // request sent successfully, do nothing!
-                waitTimeMs = 0;
-            } else if (errStatus == 0) {
-                waitTimeMs = EMPTY_WAIT_TIME; // no request, sleep for 1 seconds
-            } else if (retryCount < RETRY_MAX_COUNT) {
-                // error in sending, requeue & sleep for RETRY_SLEEP_TIME seconds
-                // So total maximum we will wait for RETRY_MAX_COUNT*RETRY_SLEEP_TIME seconds
-                // This is 10 minutes for now
-                retry(req);
-                waitTimeMs = RETRY_WAIT_TIME;
-            } else {
-                dropRequest(req);
-            }
-
-            try {
                 // Read on Thread.sleep(0) also
                 // https://stackoverflow.com/questions/3257708/thread-sleep0-what-is-the-normal-behavior
-                Thread.sleep(waitTimeMs);
+                Thread.sleep(Math.min(waitTimeMs, EMPTY_WAIT_TIME));
             } catch (InterruptedException e) {
+                // eg. the executor given to start(Executor) was shut down
                 stop();
+                break;
             }
 
         }
     }
 
+    // Blocks until a message is added or EMPTY_WAIT_TIME (less when shutting down) has passed
+    private void awaitRequest() throws InterruptedException {
+        q.await(sender.getIdleWaitMs(), TimeUnit.MILLISECONDS);
+    }
+
+    // Sends one request and returns the time to wait before the next one, or IDLE
+    private long sendNext() {
+        numHeld.incrementAndGet();
+        try {
+            return sendNext(getFirst());
+        } finally {
+            numHeld.decrementAndGet();
+        }
+    }
+
+    private long sendNext(QueuedRequest req) {
+        if (req == null) {
+            c.getCircuitBreaker().release();
+            c.retryFailedBulkItems(); // nothing new to send, so push failed bulk items now
+            return IQueueWorker.IDLE;
+        }
+
+        int errStatus;
+        try {
+            // the breaker learns the result from the client's response listener
+            c.send(req.req);
+            m.recordEnqueueLatency(System.nanoTime() - req.enqueueNanos);
+            m.addNumSuccess(1);
+            return 0;
+        } catch (HttpStatusCodeException e) {
+            errStatus = e.getRawStatusCode();
+            log.error("error in sending log to elk: request_name: " + req.req.getRequestName() + " error: " + e.getMessage() + Arrays.toString(e.getStackTrace()));
+        } catch (Exception e) {
+            errStatus = UNKNOWN_ERROR_STATUS; // Some uknown issue has happened
+            log.error("error in sending log to elk: request_name: " + req.req.getRequestName() + " error: " + e.getMessage() + Arrays.toString(e.getStackTrace()));
+        }
+
+        if (!RetryPolicy.isRetryable(errStatus)) {
+            c.getCircuitBreaker().release();
+            dropRequest(req, DropReason.REJECTED);
+            return 0;
+        }
+        c.getCircuitBreaker().onFailure();
+        int attempts = ++req.attempts;
+        if (!retryPolicy.canRetry(attempts)) {
+            dropRequest(req, DropReason.RETRIES_EXHAUSTED);
+            return 0;
+        }
+        m.addNumRetried(1);
+        retry(req);
+        long delayMs = retryPolicy.getDelayMs(attempts);
+        backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        return delayMs;
+    }
+
     public List<SearchHit> search(SearchSourceBuilder sourceBuilder, List<String> indexPatternList) throws IOException {
         return c.search(sourceBuilder, indexPatternList);
     }
 
+    // The steps of run(), also for running on a ScheduledRunner
+    private class Sender implements IQueueWorker {
+
+        public long step() {
+            long backoffNanos = backoffUntilNanos - System.nanoTime();
+            if (backoffNanos > 0) {
+                return TimeUnit.NANOSECONDS.toMillis(backoffNanos) + 1;
+            }
+            long waitTimeMs = c.getCircuitBreaker().tryAcquire();
+            return waitTimeMs == 0 ? sendNext() : waitTimeMs;
+        }
+
+        public long getIdleWaitMs() {
+            return closing ? DRAIN_POLL_TIME : EMPTY_WAIT_TIME;
+        }
+
+        public boolean isRunning() {
+            return ESManager.this.isRunning();
+        }
+
+        public void close() {
+            // the client stays open, it is also used for search
+        }
+
+    }
+
+    // A queued request, with when it was added and its failed attempts
+    private static class QueuedRequest {
+        private final ESRequest req;
+        private final long enqueueNanos;
+        private int attempts;
+        private int bytes; // estimated, only with a byte limit
+
+        private QueuedRequest(ESRequest req) {
+            this.req = req;
+            this.enqueueNanos = System.nanoTime();
+        }
+    }
+
 }
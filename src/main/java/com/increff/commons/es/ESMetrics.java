@@ -14,44 +14,140 @@
 
 package com.increff.commons.es;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.metrics.LatencyHistogram;
+
+/*
+ * Counters are LongAdders, so that concurrent updates do not contend and do not overflow. snapshot()
+ * copies everything into an immutable ESMetricsSnapshot without stopping the sender.
+ *
+ * ESManager and ESClient each have their own ESMetrics, and each fills in what it sees. Latencies are in
+ * nanoseconds:
+ * - enqueue (manager): from add until the request is handed to the client
+ * - send (client): round trip of an index call, or of a whole bulk in bulk mode
+ * - encode (client): encoding one document
+ */
 public class ESMetrics {
 
-	private int numProcessed;
-	private int numSuccess;
-	private int numDropped;
-	private int numReceived;
+	private final LongAdder numProcessed = new LongAdder();
+	private final LongAdder numSuccess = new LongAdder();
+	private final LongAdder numReceived = new LongAdder();
+	private final LongAdder numRetried = new LongAdder();
+	private final LongAdder[] numDropped = newAdders(DropReason.values().length);
+	// drops by the manager by ESRequestStatus, the client does not know the status of a failed bulk item
+	private final LongAdder[] numDroppedByStatus = newAdders(ESRequestStatus.values().length);
+	private final LongAdder numBytes = new LongAdder();
+	private final AtomicInteger queueHighWaterMark = new AtomicInteger();
+	private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	private final LatencyHistogram encodeLatency = new LatencyHistogram();
+
+	public long getNumSuccess() {
+		return numSuccess.sum();
+	}
+
+	public long getNumProcessed() {
+		return numProcessed.sum();
+	}
+
+	// all reasons
+	public long getNumDropped() {
+		long n = 0;
+		for (LongAdder a : numDropped) {
+			n += a.sum();
+		}
+		return n;
+	}
+
+	public long getNumDropped(DropReason reason) {
+		return numDropped[reason.ordinal()].sum();
+	}
+
+	public long getNumDropped(ESRequestStatus status) {
+		return numDroppedByStatus[status.ordinal()].sum();
+	}
+
+	public long getNumReceived() {
+		return numReceived.sum();
+	}
 
-	public synchronized int getNumSuccess() {
-		return numSuccess;
+	public long getNumRetried() {
+		return numRetried.sum();
 	}
 
-	public synchronized int getNumProcessed() {
-		return numProcessed;
+	// document bytes handed to the ES client
+	public long getNumBytes() {
+		return numBytes.sum();
 	}
 
-	public synchronized int getNumDropped() {
-		return numDropped;
+	public int getQueueHighWaterMark() {
+		return queueHighWaterMark.get();
 	}
 
-	public synchronized int getNumReceived() {
-		return numReceived;
+	public ESMetricsSnapshot snapshot() {
+		return new ESMetricsSnapshot(this, enqueueLatency.snapshot(), sendLatency.snapshot(), encodeLatency.snapshot());
 	}
 
 	// protected HELPER METHODS
-	protected synchronized void addNumProcessed(int val) {
-		numProcessed += val;
+	protected void addNumProcessed(int val) {
+		numProcessed.add(val);
+	}
+
+	protected void addNumRecieved(int val) {
+		numReceived.add(val);
+	}
+
+	protected void addNumSuccess(int val) {
+		numSuccess.add(val);
+	}
+
+	protected void addNumDropped(DropReason reason, int val) {
+		numDropped[reason.ordinal()].add(val);
+	}
+
+	// null status is not counted
+	protected void addNumDropped(ESRequestStatus status, int val) {
+		if (status != null) {
+			numDroppedByStatus[status.ordinal()].add(val);
+		}
+	}
+
+	protected void addNumRetried(int val) {
+		numRetried.add(val);
+	}
+
+	protected void addNumBytes(long val) {
+		numBytes.add(val);
+	}
+
+	protected void updateQueueSize(int size) {
+		int mark = queueHighWaterMark.get();
+		while (size > mark && !queueHighWaterMark.compareAndSet(mark, size)) {
+			mark = queueHighWaterMark.get();
+		}
+	}
+
+	protected void recordEnqueueLatency(long nanos) {
+		enqueueLatency.record(nanos);
 	}
 
-	protected synchronized void addNumRecieved(int val) {
-		numReceived += val;
+	protected void recordSendLatency(long nanos) {
+		sendLatency.record(nanos);
 	}
 
-	protected synchronized void addNumSuccess(int val) {
-		numSuccess += val;
+	protected void recordEncodeLatency(long nanos) {
+		encodeLatency.record(nanos);
 	}
 
-	protected synchronized void addNumDropped(int val) {
-		numDropped += val;
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
 	}
 
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.es;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.metrics.LatencySnapshot;
+
+// An immutable copy of ESMetrics, see ESMetrics.snapshot()
+public class ESMetricsSnapshot {
+
+	private final long timestampMillis;
+	private final long numReceived;
+	private final long numProcessed;
+	private final long numSuccess;
+	private final long numRetried;
+	private final long numDropped;
+	private final Map<DropReason, Long> numDroppedByReason;
+	private final Map<ESRequestStatus, Long> numDroppedByStatus;
+	private final long numBytes;
+	private final int queueHighWaterMark;
+	private final LatencySnapshot enqueueLatency;
+	private final LatencySnapshot sendLatency;
+	private final LatencySnapshot encodeLatency;
+
+	ESMetricsSnapshot(ESMetrics m, LatencySnapshot enqueueLatency, LatencySnapshot sendLatency,
+			LatencySnapshot encodeLatency) {
+		this.timestampMillis = System.currentTimeMillis();
+		this.numReceived = m.getNumReceived();
+		this.numProcessed = m.getNumProcessed();
+		this.numSuccess = m.getNumSuccess();
+		this.numRetried = m.getNumRetried();
+		Map<DropReason, Long> dropped = new EnumMap<>(DropReason.class);
+		long total = 0;
+		for (DropReason reason : DropReason.values()) {
+			long n = m.getNumDropped(reason);
+			dropped.put(reason, n);
+			total += n;
+		}
+		this.numDropped = total;
+		this.numDroppedByReason = Collections.unmodifiableMap(dropped);
+		Map<ESRequestStatus, Long> droppedByStatus = new EnumMap<>(ESRequestStatus.class);
+		for (ESRequestStatus status : ESRequestStatus.values()) {
+			droppedByStatus.put(status, m.getNumDropped(status));
+		}
+		this.numDroppedByStatus = Collections.unmodifiableMap(droppedByStatus);
+		this.numBytes = m.getNumBytes();
+		this.queueHighWaterMark = m.getQueueHighWaterMark();
+		this.enqueueLatency = enqueueLatency;
+		this.sendLatency = sendLatency;
+		this.encodeLatency = encodeLatency;
+	}
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public long getNumReceived() {
+		return numReceived;
+	}
+
+	public long getNumProcessed() {
+		return numProcessed;
+	}
+
+	public long getNumSuccess() {
+		return numSuccess;
+	}
+
+	public long getNumRetried() {
+		return numRetried;
+	}
+
+	public long getNumDropped() {
+		return numDropped;
+	}
+
+	public long getNumDropped(DropReason reason) {
+		return numDroppedByReason.get(reason);
+	}
+
+	public Map<DropReason, Long> getNumDroppedByReason() {
+		return numDroppedByReason;
+	}
+
+	public long getNumDropped(ESRequestStatus status) {
+		return numDroppedByStatus.get(status);
+	}
+
+	public Map<ESRequestStatus, Long> getNumDroppedByStatus() {
+		return numDroppedByStatus;
+	}
+
+	public long getNumBytes() {
+		return numBytes;
+	}
+
+	public int getQueueHighWaterMark() {
+		return queueHighWaterMark;
+	}
+
+	public LatencySnapshot getEnqueueLatency() {
+		return enqueueLatency;
+	}
+
+	public LatencySnapshot getSendLatency() {
+		return sendLatency;
+	}
+
+	public LatencySnapshot getEncodeLatency() {
+		return encodeLatency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ESMetricsSnapshot{received=%d success=%d retried=%d dropped=%s droppedByStatus=%s "
+				+ "bytes=%d queueHighWaterMark=%d enqueue=[%s] send=[%s] encode=[%s]}", numReceived, numSuccess,
+				numRetried, numDroppedByReason, numDroppedByStatus, numBytes, queueHighWaterMark, enqueueLatency,
+				sendLatency, encodeLatency);
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/*
+ * Collapses repeated messages in GelfManager.add. Messages with the same values in fields (eg.
+ * short_message, host and level, see GelfField) are duplicates for windowMs after the first one:
+ * - the first one is queued as usual, without delay
+ * - duplicates are only counted
+ * - once the window is over, one more message is queued if there were duplicates: a copy of the first
+ *   with _repeat_count (the duplicates it stands for), _first_timestamp and _last_timestamp (when the
+ *   first and last duplicate were added, in seconds)
+ *
+ * So a burst of duplicates becomes two messages, not one: the first is not held back for the window, so
+ * that it is not delayed or lost on a crash, and the repeat follows when the window is over. The repeat
+ * does not keep the _sample_rate of the first (see GelfSampler): sampling happens before aggregation,
+ * so _repeat_count already counts only the duplicates that passed the sampler.
+ *
+ * Fingerprints live in a fixed size table with WAYS entries per set, so memory is bounded by maxEntries
+ * (plus the first message each entry keeps for its copy). If all entries of a set are in use by other
+ * fingerprints, the message just goes through. Finding a duplicate takes the hash codes of the field
+ * values (cached for Strings), a lock on one of LOCK_STRIPES stripes and an equals per field, and does not
+ * allocate.
+ *
+ * Windows are closed by flush, which the manager workers call as they go. So a window can be a little
+ * longer than windowMs, and duplicates added meanwhile are still counted in it.
+ */
+public class GelfAggregator {
+
+	static final String REPEAT_COUNT_FIELD = "_repeat_count";
+	static final String FIRST_TIMESTAMP_FIELD = "_first_timestamp";
+	static final String LAST_TIMESTAMP_FIELD = "_last_timestamp";
+	private static int DEFAULT_MAX_ENTRIES = 1024;
+	private static int WAYS = 4;
+	private static int LOCK_STRIPES = 64;
+
+	private final GelfField[] fields;
+	private final long windowMs;
+	private final int setMask;
+	private final Object[] locks;
+	// entry i of set s is at s * WAYS + i. An entry is free if first is null
+	private final int[] hashes;
+	private final GelfRequest[] firsts;
+	private final long[] windowEnds;
+	private final int[] counts;
+	private final long[] firstMillis;
+	private final long[] lastMillis;
+	// no flush before this, so that busy workers do not scan the table on every batch
+	private volatile long nextFlushMillis;
+
+	// short_message, host and level
+	public GelfAggregator(long windowMs) {
+		this(windowMs, DEFAULT_MAX_ENTRIES, "short_message", "host", "level");
+	}
+
+	public GelfAggregator(long windowMs, int maxEntries, String... fields) {
+		if (windowMs < 1 || maxEntries < WAYS || fields.length == 0) {
+			throw new IllegalArgumentException("Invalid aggregator config, windowMs: " + windowMs + ", maxEntries: "
+					+ maxEntries + ", fields: " + fields.length);
+		}
+		this.fields = GelfField.of(fields);
+		this.windowMs = windowMs;
+		// a power of 2 number of sets, so that maxEntries is not exceeded
+		int numSets = Integer.highestOneBit(maxEntries / WAYS);
+		this.setMask = numSets - 1;
+		this.locks = new Object[Math.min(LOCK_STRIPES, numSets)];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		int n = numSets * WAYS;
+		this.hashes = new int[n];
+		this.firsts = new GelfRequest[n];
+		this.windowEnds = new long[n];
+		this.counts = new int[n];
+		this.firstMillis = new long[n];
+		this.lastMillis = new long[n];
+	}
+
+	public long getWindowMs() {
+		return windowMs;
+	}
+
+	// Returns true if req is a duplicate, which is then only counted
+	public boolean aggregate(GelfRequest req) {
+		return aggregate(req, System.currentTimeMillis());
+	}
+
+	boolean aggregate(GelfRequest req, long now) {
+		int hash = hash(req);
+		int set = hash & setMask;
+		int free = -1;
+		synchronized (locks[set & (locks.length - 1)]) {
+			for (int i = set * WAYS; i < (set + 1) * WAYS; i++) {
+				GelfRequest first = firsts[i];
+				if (first == null) {
+					free = free < 0 ? i : free;
+				} else if (hashes[i] == hash && sameFields(first, req)) {
+					if (counts[i] == 0 && windowEnds[i] <= now) {
+						// a window without duplicates is over, req starts a new one
+						free = i;
+						break;
+					}
+					if (counts[i] == 0) {
+						firstMillis[i] = now;
+					}
+					counts[i]++;
+					lastMillis[i] = now;
+					return true;
+				} else if (counts[i] == 0 && windowEnds[i] <= now && free < 0) {
+					// nothing to report for this one, its entry can be reused right away
+					free = i;
+				}
+			}
+			if (free >= 0) {
+				hashes[free] = hash;
+				firsts[free] = req;
+				windowEnds[free] = now + windowMs;
+				counts[free] = 0;
+			}
+		}
+		return false;
+	}
+
+	// Closes the windows that are over and passes their repeat messages to out. Does nothing if called
+	// again within a quarter of the window, unless all is true, which closes all windows
+	public void flush(boolean all, Consumer<GelfRequest> out) {
+		long now = System.currentTimeMillis();
+		if (!all && now < nextFlushMillis) {
+			return;
+		}
+		nextFlushMillis = now + Math.max(1, windowMs / 4);
+		List<GelfRequest> repeats = null;
+		for (int set = 0; set <= setMask; set++) {
+			synchronized (locks[set & (locks.length - 1)]) {
+				for (int i = set * WAYS; i < (set + 1) * WAYS; i++) {
+					if (firsts[i] == null || (!all && windowEnds[i] > now)) {
+						continue;
+					}
+					if (counts[i] > 0) {
+						repeats = repeats == null ? new ArrayList<>() : repeats;
+						repeats.add(newRepeat(i));
+					}
+					firsts[i] = null;
+				}
+			}
+		}
+		// outside the locks, out can be slow
+		if (repeats != null) {
+			repeats.forEach(out);
+		}
+	}
+
+	private GelfRequest newRepeat(int i) {
+		GelfRequest repeat = firsts[i].copy();
+		// the first one may have passed a GelfSampler, the duplicates did not
+		repeat.removeAdditionalField(GelfSampler.SAMPLE_RATE_FIELD);
+		repeat.addAdditionalField(REPEAT_COUNT_FIELD, counts[i]);
+		repeat.addAdditionalField(FIRST_TIMESTAMP_FIELD, firstMillis[i] / 1000.0);
+		repeat.addAdditionalField(LAST_TIMESTAMP_FIELD, lastMillis[i] / 1000.0);
+		return repeat;
+	}
+
+	private int hash(GelfRequest req) {
+		int h = 1;
+		for (GelfField f : fields) {
+			h = 31 * h + Objects.hashCode(f.getValue(req));
+		}
+		// spread the high bits, sets are picked by the low ones
+		return h ^ (h >>> 16);
+	}
+
+	private boolean sameFields(GelfRequest a, GelfRequest b) {
+		for (GelfField f : fields) {
+			if (!Objects.equals(f.getValue(a), f.getValue(b))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+/*
+ * Posts GELF messages to a Graylog GELF HTTP input like GelfClient, but without waiting for the
+ * response. Up to maxInFlight posts are sent at once, each on its own pooled keep-alive connection,
+ * and one IO thread handles all of them. So a single GelfManager worker keeps the link busy instead
+ * of waiting a round trip per batch.
+ *
+ * Graylog inputs do not do HTTP/2, and pipelining on one connection stalls every request behind a
+ * slow one, so in flight requests get a connection each instead.
+ *
+ * sendAsync waits up to its timeout while maxInFlight posts are pending, then gives up without
+ * sending. The body is sent from the GelfBuffer itself, which the caller gets back through the
+ * callback. Compressed bodies are copied out of the compressor, as it is reused for the next post.
+ */
+public class GelfAsyncClient implements IGelfAsyncTransport {
+
+	private static final int CONNECT_TIMEOUT = 10_000; // 10 seconds
+	private static final int SOCKET_TIMEOUT = 30_000; // 30 seconds
+	private static final int CLOSE_TIMEOUT = 10_000; // 10 seconds
+
+	private final String baseUrl;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final AtomicInteger numInFlight;
+	private final List<Header> headers;
+	private final CloseableHttpAsyncClient client;
+	private GelfCompressor compressor;
+	private int compressionThreshold;
+	private Header contentEncoding;
+	private GelfMetrics metrics;
+
+	public GelfAsyncClient(String baseUrl, int maxInFlight) throws IOReactorException {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Need at least one request in flight, maxInFlight: " + maxInFlight);
+		}
+		this.baseUrl = baseUrl;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.numInFlight = new AtomicInteger();
+		this.headers = new ArrayList<>();
+		headers.add(new BasicHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType()));
+
+		IOReactorConfig ioConfig = IOReactorConfig.custom() //
+				.setIoThreadCount(1) //
+				.setConnectTimeout(CONNECT_TIMEOUT) //
+				.setSoTimeout(SOCKET_TIMEOUT) //
+				.setTcpNoDelay(true) //
+				.setSoKeepAlive(true) //
+				.build();
+		PoolingNHttpClientConnectionManager connections = new PoolingNHttpClientConnectionManager(
+				new DefaultConnectingIOReactor(ioConfig));
+		connections.setMaxTotal(maxInFlight);
+		connections.setDefaultMaxPerRoute(maxInFlight);
+		RequestConfig requestConfig = RequestConfig.custom() //
+				.setConnectTimeout(CONNECT_TIMEOUT) //
+				.setSocketTimeout(SOCKET_TIMEOUT) //
+				.build();
+		this.client = HttpAsyncClients.custom() //
+				.setConnectionManager(connections) //
+				.setDefaultRequestConfig(requestConfig) //
+				.build();
+		client.start();
+	}
+
+	// Must be called before the first send
+	public void addHeader(String headerName, String headerValue) {
+		headers.add(new BasicHeader(headerName, headerValue));
+	}
+
+	// Messages of at least thresholdBytes are sent compressed, with a matching Content-Encoding header
+	public synchronized void setCompression(GelfCompression compression, int thresholdBytes) {
+		if (compressor != null) {
+			compressor.close();
+		}
+		if (compression == GelfCompression.NONE) {
+			compressor = null;
+			contentEncoding = null;
+			return;
+		}
+		compressor = new GelfCompressor(compression);
+		compressionThreshold = thresholdBytes;
+		contentEncoding = new BasicHeader(HttpHeaders.CONTENT_ENCODING,
+				compression == GelfCompression.GZIP ? "gzip" : "deflate");
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public int getNumInFlight() {
+		return numInFlight.get();
+	}
+
+	// Sends all messages in a single POST, one JSON document per line. Returns false if maxInFlight posts
+	// were still pending after timeoutMs
+	public boolean sendAsync(GelfBuffer gelfMessages, IGelfSendCallback callback, long timeoutMs)
+			throws IOException {
+		if (gelfMessages.isEmpty()) {
+			callback.completed(HttpStatus.OK.value());
+			return true;
+		}
+		try {
+			if (!inFlight.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a request to complete");
+		}
+		numInFlight.incrementAndGet();
+		try {
+			post(gelfMessages, callback);
+		} catch (IOException | RuntimeException e) {
+			// eg. IllegalStateException once the client is closed, the callback will not release the slot
+			release();
+			throw e;
+		}
+		return true;
+	}
+
+	private void post(GelfBuffer gelfMessages, IGelfSendCallback callback) throws IOException {
+		gelfMessages.setSeparator((byte) '\n');
+		// the last separator is not sent
+		int length = gelfMessages.getSize() - 1;
+		HttpPost post = new HttpPost(baseUrl);
+		for (Header h : headers) {
+			post.addHeader(h);
+		}
+		byte[] body = gelfMessages.getArray();
+		int sentLength = length;
+		synchronized (this) {
+			if (compressor != null && length >= compressionThreshold) {
+				sentLength = compressor.compress(body, 0, length);
+				body = Arrays.copyOf(compressor.getBuffer(), sentLength);
+				post.addHeader(contentEncoding);
+			}
+		}
+		post.setEntity(new NByteArrayEntity(body, 0, sentLength));
+		client.execute(post, new Callback(callback));
+		if (metrics != null) {
+			metrics.addBytes(length, sentLength);
+		}
+	}
+
+	// Waits for the response, for use outside a GelfManager
+	public void send(GelfBuffer gelfMessages) throws IOException {
+		CountDownLatch done = new CountDownLatch(1);
+		AtomicInteger status = new AtomicInteger();
+		AtomicReference<Exception> error = new AtomicReference<>();
+		sendAsync(gelfMessages, new IGelfSendCallback() {
+			public void completed(int s) {
+				status.set(s);
+				done.countDown();
+			}
+
+			public void failed(Exception e) {
+				error.set(e);
+				done.countDown();
+			}
+		}, Long.MAX_VALUE);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a response");
+		}
+		if (error.get() != null) {
+			throw new IOException("Sending GELF messages failed", error.get());
+		}
+		throwOnError(status.get());
+	}
+
+	// Waits up to CLOSE_TIMEOUT for requests in flight, and then closes the connections
+	public void close() {
+		try {
+			if (inFlight.tryAcquire(maxInFlight, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				inFlight.release(maxInFlight);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			// nothing to do, the connections are gone either way
+		}
+		synchronized (this) {
+			if (compressor != null) {
+				compressor.close();
+			}
+		}
+	}
+
+	// before the callback, which may send the next batch right away
+	private void release() {
+		numInFlight.decrementAndGet();
+		inFlight.release();
+	}
+
+	// Same exceptions as GelfClient throws through RestTemplate, so GelfManager sees the status
+	private static void throwOnError(int status) throws IOException {
+		HttpStatus s = HttpStatus.resolve(status);
+		if (s != null && s.is2xxSuccessful()) {
+			return;
+		}
+		if (s != null && s.is4xxClientError()) {
+			throw HttpClientErrorException.create(s, s.getReasonPhrase(), null, null, null);
+		}
+		if (s != null && s.is5xxServerError()) {
+			throw HttpServerErrorException.create(s, s.getReasonPhrase(), null, null, null);
+		}
+		throw new IOException("Unexpected status from Graylog: " + status);
+	}
+
+	private class Callback implements FutureCallback<HttpResponse> {
+
+		private final IGelfSendCallback callback;
+
+		private Callback(IGelfSendCallback callback) {
+			this.callback = callback;
+		}
+
+		public void completed(HttpResponse response) {
+			release();
+			callback.completed(response.getStatusLine().getStatusCode());
+		}
+
+		public void failed(Exception e) {
+			release();
+			callback.failed(e);
+		}
+
+		public void cancelled() {
+			release();
+			callback.failed(new IOException("Request cancelled"));
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * A growable byte array holding one or more UTF-8 encoded GELF messages back to back, see
+ * GelfEncoder.encode. Buffers are meant to be reused (see GelfBufferPool), so after warm up encoding and
+ * sending a message does not allocate anything in proportion to its size.
+ *
+ * Every message is followed by one separator byte, so that the transports can send a batch as a single
+ * slice: '\n' between messages for HTTP, or a null byte after each message for TCP (see setSeparator).
+ *
+ * Not thread safe.
+ */
+public class GelfBuffer extends OutputStream {
+
+	private static final int INITIAL_MESSAGES = 16;
+
+	private byte[] buf;
+	private int size;
+	// offset of the separator after each message
+	private int[] ends;
+	private int numMessages;
+	private byte separator;
+
+	public GelfBuffer(int initialCapacity) {
+		this.buf = new byte[Math.max(initialCapacity, 16)];
+		this.ends = new int[INITIAL_MESSAGES];
+		this.separator = '\n';
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(size + 1);
+		buf[size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(size + len);
+		System.arraycopy(b, off, buf, size, len);
+		size += len;
+	}
+
+	// Closes the message written since the last endMessage
+	public void endMessage() {
+		if (numMessages == ends.length) {
+			ends = Arrays.copyOf(ends, ends.length * 2);
+		}
+		ends[numMessages++] = size;
+		write(separator);
+	}
+
+	// Drops whatever was written since the last endMessage, eg. after an encoding error
+	public void discardMessage() {
+		size = numMessages == 0 ? 0 : ends[numMessages - 1] + 1;
+	}
+
+	public void setSeparator(byte separator) {
+		if (this.separator == separator) {
+			return;
+		}
+		this.separator = separator;
+		for (int i = 0; i < numMessages; i++) {
+			buf[ends[i]] = separator;
+		}
+	}
+
+	public void reset() {
+		size = 0;
+		numMessages = 0;
+	}
+
+	public byte[] getArray() {
+		return buf;
+	}
+
+	// All messages with their separators
+	public int getSize() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return buf.length;
+	}
+
+	public int getNumMessages() {
+		return numMessages;
+	}
+
+	public boolean isEmpty() {
+		return numMessages == 0;
+	}
+
+	public int getOffset(int i) {
+		return i == 0 ? 0 : ends[i - 1] + 1;
+	}
+
+	public int getLength(int i) {
+		return ends[i] - getOffset(i);
+	}
+
+	// Only for logging, this allocates
+	public String getMessage(int i) {
+		return new String(buf, getOffset(i), getLength(i), StandardCharsets.UTF_8);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+		}
+	}
+
+}
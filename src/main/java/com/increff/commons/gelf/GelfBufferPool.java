@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Keeps released GelfBuffers for reuse. At most maxBuffers are kept, and buffers that grew beyond
+ * maxRetainedBytes (eg. for one huge batch) are left to the GC, so the pool does not pin memory.
+ */
+public class GelfBufferPool {
+
+	private final ConcurrentLinkedQueue<GelfBuffer> buffers;
+	private final AtomicInteger numBuffers;
+	private final int maxBuffers;
+	private final int initialCapacity;
+	private final int maxRetainedBytes;
+
+	public GelfBufferPool(int maxBuffers, int initialCapacity, int maxRetainedBytes) {
+		this.buffers = new ConcurrentLinkedQueue<>();
+		this.numBuffers = new AtomicInteger();
+		this.maxBuffers = maxBuffers;
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+
+	public GelfBuffer acquire() {
+		GelfBuffer b = buffers.poll();
+		if (b == null) {
+			return new GelfBuffer(initialCapacity);
+		}
+		numBuffers.decrementAndGet();
+		return b;
+	}
+
+	public void release(GelfBuffer b) {
+		if (b.getCapacity() > maxRetainedBytes) {
+			return;
+		}
+		if (numBuffers.incrementAndGet() > maxBuffers) {
+			numBuffers.decrementAndGet();
+			return;
+		}
+		b.reset();
+		buffers.offer(b);
+	}
+
+}
@@ -15,49 +15,128 @@
 package com.increff.commons.gelf;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
-public class GelfClient extends Thread {
+/*
+ * Posts GELF messages to a Graylog GELF HTTP input. A GelfBuffer with several messages is posted as one
+ * request, one JSON document per line.
+ *
+ * The body is streamed from the bytes of the buffer (or of the compressor) straight to the connection,
+ * with a fixed Content-Length, so no copy of the payload is made on the way.
+ */
+public class GelfClient extends Thread implements IGelfTransport {
 
 	private RestTemplate t;
 	private HttpHeaders headers;
+	private HttpHeaders compressedHeaders;
 	private String baseUrl;
+	private GelfCompressor compressor;
+	private int compressionThreshold;
+	private GelfMetrics metrics;
 
 	public GelfClient(String baseUrl) {
 		this.baseUrl = baseUrl;
-		this.t = new RestTemplate();
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		// write the body to the connection as it is, instead of copying it into another buffer first
+		requestFactory.setBufferRequestBody(false);
+		this.t = new RestTemplate(requestFactory);
 		headers = new HttpHeaders();
 		headers.setContentType(MediaType.APPLICATION_JSON);
 	}
 
 	public void addHeader(String headerName, String headerValue) {
 		headers.add(headerName, headerValue);
+		if (compressedHeaders != null) {
+			compressedHeaders.add(headerName, headerValue);
+		}
+	}
+
+	// Messages of at least thresholdBytes are sent compressed, with a matching Content-Encoding header
+	public synchronized void setCompression(GelfCompression compression, int thresholdBytes) {
+		if (compressor != null) {
+			compressor.close();
+		}
+		if (compression == GelfCompression.NONE) {
+			compressor = null;
+			compressedHeaders = null;
+			return;
+		}
+		compressor = new GelfCompressor(compression);
+		compressionThreshold = thresholdBytes;
+		compressedHeaders = new HttpHeaders();
+		compressedHeaders.putAll(headers);
+		compressedHeaders.set(HttpHeaders.CONTENT_ENCODING, compression == GelfCompression.GZIP ? "gzip" : "deflate");
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
 	}
 
 	//if this function is runnig, it means that if large payloads req needs to be dropped, its already done
 	public void send(GelfRequest req) throws IOException {
-		// Create the request body as a MultiValueMap
-		String json = GelfEncoder.computeJson(req);
-		send(json);
+		GelfBuffer b = new GelfBuffer(1024);
+		GelfEncoder.encode(req, b);
+		send(b);
 	}
 
+	// Sends all messages in a single POST, one JSON document per line
+	public void send(GelfBuffer gelfMessages) throws RestClientException {
+		if (gelfMessages.isEmpty()) {
+			return;
+		}
+		gelfMessages.setSeparator((byte) '\n');
+		// the last separator is not sent
+		send(gelfMessages.getArray(), gelfMessages.getSize() - 1);
+	}
+
+	public synchronized void close() {
+		// RestTemplate holds no connections of its own
+		if (compressor != null) {
+			compressor.close();
+		}
+	}
 
 	protected void send(String gelfMessage) throws RestClientException {
-		// Note the body object as first parameter!
-		HttpEntity<?> httpEntity = new HttpEntity<String>(gelfMessage, headers);
-		ResponseEntity<String> response = //
-				t.exchange(baseUrl, HttpMethod.POST, httpEntity, String.class);
-		if (response.getStatusCode().equals(HttpStatus.OK)) {
-			return;
+		byte[] body = gelfMessage.getBytes(StandardCharsets.UTF_8);
+		send(body, body.length);
+	}
+
+	private void send(byte[] body, int length) throws RestClientException {
+		synchronized (this) {
+			if (compressor != null && length >= compressionThreshold) {
+				int compressedLength = compressor.compress(body, 0, length);
+				// the compressor buffer is reused, so it has to be written out before unlocking
+				post(compressedHeaders, compressor.getBuffer(), compressedLength);
+				addBytes(length, compressedLength);
+				return;
+			}
+		}
+		post(headers, body, length);
+		addBytes(length, length);
+	}
+
+	private void addBytes(int rawLength, int sentLength) {
+		if (metrics != null) {
+			metrics.addBytes(rawLength, sentLength);
 		}
 	}
 
+	// Errors are thrown by the default error handler of RestTemplate, as HttpStatusCodeException
+	private void post(HttpHeaders h, byte[] body, int length) throws RestClientException {
+		t.execute(baseUrl, HttpMethod.POST, request -> {
+			request.getHeaders().putAll(h);
+			request.getHeaders().setContentLength(length);
+			OutputStream out = request.getBody();
+			out.write(body, 0, length);
+		}, null);
+	}
+
 }
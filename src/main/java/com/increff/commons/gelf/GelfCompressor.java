@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Compresses payloads into a buffer that is reused across calls, so a transport can compress every
+ * message without allocating a new stream, deflater and output array each time.
+ *
+ * GZIP output is written by hand (header + raw deflate + CRC32/size trailer) because GZIPOutputStream
+ * creates a new Deflater per stream. ZLIB output is what HTTP calls "deflate".
+ *
+ * Not thread safe, each transport keeps its own instance.
+ */
+class GelfCompressor {
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final boolean gzip;
+	private final Deflater deflater;
+	private final CRC32 crc;
+	private byte[] buffer;
+
+	GelfCompressor(GelfCompression compression) {
+		if (compression == GelfCompression.NONE) {
+			throw new IllegalArgumentException("No compressor needed for " + compression);
+		}
+		this.gzip = compression == GelfCompression.GZIP;
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+		this.crc = new CRC32();
+		this.buffer = new byte[8192];
+	}
+
+	// Compresses the input and returns the number of bytes written into getBuffer()
+	int compress(byte[] in, int off, int len) {
+		int pos = 0;
+		if (gzip) {
+			System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+			pos = GZIP_HEADER.length;
+			crc.reset();
+			crc.update(in, off, len);
+		}
+		deflater.reset();
+		deflater.setInput(in, off, len);
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (pos == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			pos += deflater.deflate(buffer, pos, buffer.length - pos);
+		}
+		if (gzip) {
+			if (pos + 8 > buffer.length) {
+				buffer = Arrays.copyOf(buffer, pos + 8);
+			}
+			pos = writeIntLE(buffer, pos, (int) crc.getValue());
+			pos = writeIntLE(buffer, pos, len);
+		}
+		return pos;
+	}
+
+	// Valid until the next call to compress
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	void close() {
+		deflater.end();
+	}
+
+	private static int writeIntLE(byte[] b, int pos, int v) {
+		b[pos] = (byte) v;
+		b[pos + 1] = (byte) (v >>> 8);
+		b[pos + 2] = (byte) (v >>> 16);
+		b[pos + 3] = (byte) (v >>> 24);
+		return pos + 4;
+	}
+
+}
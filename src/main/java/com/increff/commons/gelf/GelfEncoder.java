@@ -15,37 +15,69 @@
 package com.increff.commons.gelf;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.util.Map;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 
+/*
+ * computeJson returns the message as a String, which is fine for logging. For sending, encode writes
+ * UTF-8 straight into a reusable GelfBuffer, so there is no String to encode again afterwards. Jackson
+ * recycles its own output buffer per thread, so a generator costs a few small objects per message.
+ */
 public class GelfEncoder {
 
-	private static final int MAX_FIELD_SIZE = 32_000;
+	static final int MAX_FIELD_SIZE = 32_000;
+	private static final String TRUNCATED_FIELDS = "_truncated_fields";
 	private final static JsonFactory jsonFactory;
 
 	static {
 		jsonFactory = new JsonFactory();
+		jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 	}
 
 	public static String computeJson(GelfRequest req) throws IOException {
-
 		StringWriter w = new StringWriter();
 		JsonGenerator g = jsonFactory.createGenerator(w);
+		write(g, req, 0);
+		return w.toString();
+	}
+
+	// Appends req to out as one message. If encoding fails, out is left as it was
+	public static void encode(GelfRequest req, GelfBuffer out) throws IOException {
+		encode(req, out, 0);
+	}
 
+	// Same as encode, but string fields over maxFieldBytes (if > 0) are cut down to it and listed in
+	// _truncated_fields. Returns true if any field was truncated
+	public static boolean encode(GelfRequest req, GelfBuffer out, int maxFieldBytes) throws IOException {
+		try {
+			boolean truncated = write(jsonFactory.createGenerator(out, JsonEncoding.UTF8), req, maxFieldBytes);
+			out.endMessage();
+			return truncated;
+		} catch (IOException | RuntimeException e) {
+			out.discardMessage();
+			throw e;
+		}
+	}
+
+	private static boolean write(JsonGenerator g, GelfRequest req, int maxFieldBytes) throws IOException {
+		StringBuilder truncated = null;
 		g.writeStartObject();
 
 		g.writeStringField("version", req.getVersion().toString());
 		g.writeNumberField("timestamp", req.getTimestamp());
 		g.writeStringField("host", req.getHost());
-		writeMessage(g, "short_message", req.getShortMessage());
+		truncated = writeField(g, "short_message", req.getShortMessage(), req.getShortMessageSize(), maxFieldBytes,
+				truncated);
 		g.writeNumberField("level", req.getLevel().getNumericLevel());
 
 		// Optional
-		writeMessage(g, "full_message", req.getFullMessage());
+		truncated = writeField(g, "full_message", req.getFullMessage(), req.getFullMessageSize(), maxFieldBytes,
+				truncated);
 
 		Map<String, Object> fieldMap = req.getAdditionalFields();
 		for (String key : fieldMap.keySet()) {
@@ -59,7 +91,10 @@ public class GelfEncoder {
 				// Let Jackson figure out how to write Number values.
 				g.writeObjectField(realKey, value);
 			}
-			if (value instanceof String && getSize(value.toString()) > MAX_FIELD_SIZE) {
+			if (value instanceof String && maxFieldBytes > 0) {
+				truncated = writeField(g, realKey, (String) value, req.getFieldSize(key), maxFieldBytes, truncated);
+			}
+			else if (value instanceof String && req.getFieldSize(key) > MAX_FIELD_SIZE) {
 				writeMessage(g, "_large_payload", value.toString());
 			}
 			else if (value instanceof String) {
@@ -68,8 +103,29 @@ public class GelfEncoder {
 			// Ignore everything except Number and String
 		}
 
+		if (truncated != null) {
+			g.writeStringField(TRUNCATED_FIELDS, truncated.toString());
+		}
 		g.close();
-		return w.toString();
+		return truncated != null;
+	}
+
+	// Writes value cut down to maxFieldBytes if it is larger, and then adds key to the truncated list
+	private static StringBuilder writeField(JsonGenerator g, String key, String value, int size, int maxFieldBytes,
+			StringBuilder truncated) throws IOException {
+		if (value == null || maxFieldBytes <= 0 || size <= maxFieldBytes) {
+			writeMessage(g, key, value);
+			return truncated;
+		}
+		g.writeFieldName(key);
+		// Jackson reads the prefix through its own buffer, the value is not copied as a whole
+		g.writeString(new StringReader(value), utf8Prefix(value, maxFieldBytes));
+		if (truncated == null) {
+			truncated = new StringBuilder();
+		} else {
+			truncated.append(',');
+		}
+		return truncated.append(key);
 	}
 
 	public static void writeMessage(JsonGenerator g, String key, String value) throws IOException {
@@ -81,22 +137,61 @@ public class GelfEncoder {
 	}
 
 	public static final boolean isLongField(String s) {
-		try {
-			return s == null ? false : s.getBytes("utf-8").length > MAX_FIELD_SIZE;
-		} catch (UnsupportedEncodingException e) {
-			// In case JVM does not support "utf-8", we just multiply by 4 bytes to get the
-			// maximum possible length
-			return (s.length() * 4) > MAX_FIELD_SIZE;
-		}
+		return getSize(s) > MAX_FIELD_SIZE;
 	}
 
 	public static int getSize(String s) {
-		try {
-			return s == null ? 0 : s.getBytes("utf-8").length;
-		} catch (UnsupportedEncodingException e) {
-			// In case JVM does not support "utf-8", we just multiply by 4 bytes to get the
-			// maximum possible length
-			return (s.length() * 4);
+		return s == null ? 0 : utf8Length(s);
+	}
+
+	// Same as s.getBytes(UTF_8).length, without encoding. A lone surrogate counts as 1 byte, as getBytes
+	// replaces it with '?'
+	public static int utf8Length(String s) {
+		int n = s.length();
+		int len = n;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				len += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 2; // 4 bytes for the 2 chars
+				i++;
+			} else if (!Character.isSurrogate(c)) {
+				len += 2;
+			}
+		}
+		return len;
+	}
+
+	// Number of chars of s that fit in maxBytes of UTF-8, without splitting a surrogate pair
+	public static int utf8Prefix(String s, int maxBytes) {
+		int n = s.length();
+		int len = 0;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			int charBytes;
+			int numChars = 1;
+			if (c < 0x80) {
+				charBytes = 1;
+			} else if (c < 0x800) {
+				charBytes = 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				charBytes = 4;
+				numChars = 2;
+			} else if (Character.isSurrogate(c)) {
+				charBytes = 1;
+			} else {
+				charBytes = 3;
+			}
+			if (len + charBytes > maxBytes) {
+				return i;
+			}
+			len += charBytes;
+			i += numChars - 1;
 		}
+		return n;
 	}
 }
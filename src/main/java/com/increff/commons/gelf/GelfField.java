@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+/*
+ * A field of a GelfRequest by name, for GelfSampler and GelfAggregator: "short_message", "full_message",
+ * "host", "level", or an additional field. GelfEncoder adds the "_" to additional field names if it is
+ * missing, so "_proxy_call" and "proxy_call" are the same field. Both names are built once here, so
+ * getValue does not allocate.
+ */
+final class GelfField {
+
+	private final String name;
+	private final String otherName;
+
+	GelfField(String name) {
+		this.name = name;
+		this.otherName = name.startsWith("_") ? name.substring(1) : "_" + name;
+	}
+
+	Object getValue(GelfRequest req) {
+		switch (name) {
+		case "short_message":
+			return req.getShortMessage();
+		case "full_message":
+			return req.getFullMessage();
+		case "host":
+			return req.getHost();
+		case "level":
+			return req.getLevel();
+		default:
+			Object value = req.getAdditionalField(name);
+			return value != null ? value : req.getAdditionalField(otherName);
+		}
+	}
+
+	static GelfField[] of(String... names) {
+		GelfField[] fields = new GelfField[names.length];
+		for (int i = 0; i < names.length; i++) {
+			fields[i] = new GelfField(names[i]);
+		}
+		return fields;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
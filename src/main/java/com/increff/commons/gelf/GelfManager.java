@@ -14,26 +14,84 @@
 
 package com.increff.commons.gelf;
 
-import java.util.concurrent.LinkedBlockingDeque;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.springframework.web.client.HttpStatusCodeException;
 
+import com.increff.commons.metrics.DrainReport;
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.queue.AbstractBoundedQueue;
+import com.increff.commons.queue.BoundedQueue;
+import com.increff.commons.queue.IQueueWorker;
+import com.increff.commons.queue.PriorityBoundedQueue;
+import com.increff.commons.queue.ScheduledRunner;
+import com.increff.commons.queue.SpillQueue;
+import com.increff.commons.retry.CircuitBreaker;
+import com.increff.commons.retry.RetryPolicy;
+
 /*
  * This class is designed to create a fast and fault tolerant Gelf client.
  * 
- * All new messages are queued, and a background thread tries to push to GrayLog.
- * This way calling methods are not slowed down
- * 
- * If there is no space in queue, then oldest message is dropped(queue.pollFirst())
- * Then new message is put in queue. 
+ * All new messages are queued, and background threads (workers, see setNumWorkers) push them to GrayLog.
+ * This way calling methods are not slowed down. Each worker has its own transport, batch and retry
+ * count, so while one worker waits to retry, the others keep draining the queue.
  * 
- * If a message delivery fails because of 402, 403, 404, 502 etc, then message is added to top of queue, 
- * so that it is retried quickly. However, if queue is full, then that too will be dropped
+ * If there is no space in queue, then oldest message is dropped(queue.poll())
+ * Then new message is put in queue. The queue is lock free, so application threads calling add
+ * never wait for each other or for the sender thread.
+ *
+ * The queue holds 1000 messages, and optionally at most so many bytes of them (see setQueueCapacity),
+ * so that large messages cannot take an unbounded share of the heap.
  * 
- *  If, there was no message, or status was 404 or 502 (given by load balancers) then the thread
- *  sleeps for RETRY_SLEEP_TIME milliseconds to avoid unnecessary loops
+ * If a message delivery fails with 408, 429, 5xx (eg. 502 given by load balancers) or an IO error, then
+ * message is added to top of queue, so that it is retried quickly, and the worker waits with exponential
+ * backoff and jitter (see RetryPolicy). A message is dropped after RETRY_MAX_COUNT failed attempts, or
+ * if queue is full. Any other 4xx means the message was rejected, so it is dropped right away.
+ *
+ * A CircuitBreaker shared by all workers stops sending after BREAKER_FAILURE_COUNT failures in a row.
+ * After a short, growing wait it lets one probe batch through, and on success all workers resume at
+ * once. So after an outage delivery recovers within milliseconds of the probe.
+ *
+ * With an IGelfAsyncTransport (eg. GelfAsyncClient) a worker does not wait for the response. It keeps
+ * sending batches until the transport has its maximum in flight, and each result is handled as above
+ * when it arrives, on a thread of the transport. Retried messages may then go out after newer ones.
+ *
+ * If there was no message, the worker blocks on the queue until add wakes it up, or for at most
+ * EMPTY_WAIT_TIME milliseconds. So a message added to an idle manager is sent right away, and an idle
+ * manager does not spin. Lingering for a batch (see setBatching) waits on the queue the same way.
+ *
+ * Workers run on threads of their own (start), as tasks of an Executor (start(Executor), eg. virtual
+ * threads), or step by step on a ScheduledExecutorService shared with other managers (startScheduled).
+ * There they never block: waits become delayed tasks, and a lingering batch is kept until its next step.
+
+ * Optionally (see enableSpill), messages dropped from the queue, failing all retries or pending on stop
+ * are written to a disk backed SpillQueue instead of being dropped. While delivery is working, i.e.
+ * the last send of a worker succeeded, the spill is replayed before the queue, so messages still go out
+ * in order. Only one worker at a time replays the spill.
+ * Only when the spill is full are messages dropped.
+
+ * Messages can optionally be shipped in batches (see setBatching). A batch is closed when it has
+ * batchMaxMessages messages, batchMaxBytes bytes of JSON, or when lingerMs has passed since its first
+ * message. Metrics are always counted per message, never per batch.
+
+ * add drops messages with a field over 32,000 bytes. With setTruncation such fields are cut down, at a
+ * code point, while encoding instead, so large proxy calls still reach Graylog.
 			
- * All GelfManager methods are synchronized to ensure thread safety.
+ * shutdown(timeoutMs) stops taking messages but keeps the workers sending until the queue is empty and
+ * every batch taken from it got its result, or the deadline passes. Only the rest is spilled or dropped.
+ * Messages in flight then are reported as unfinished; if they fail later, they are spilled or dropped.
+
+ * All GelfManager methods are thread safe. Only start and stop are synchronized.
  * 
 
  */
@@ -41,21 +99,74 @@ import org.springframework.web.client.HttpStatusCodeException;
 public class GelfManager implements Runnable {
 
 	private static int RETRY_MAX_COUNT = 10;
-	private static int RETRY_WAIT_TIME = 60_000; // 60 seconds
+	private static int RETRY_BASE_WAIT_TIME = 100; // 100 milliseconds
+	private static int RETRY_MAX_WAIT_TIME = 5_000; // 5 seconds
+	private static int BREAKER_FAILURE_COUNT = 5;
+	private static int UNKNOWN_ERROR_STATUS = 9999;
 	private static int MAX_QUEUE_SIZE = 1000;
+	private static int RETRY_HEADROOM = 10; // slots kept free for requeued messages
 	private static int EMPTY_WAIT_TIME = 1_000; // 1 second
+	private static int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024; // 16 MB
+	private static int POOL_MAX_BUFFERS = 16;
+	private static int POOL_BUFFER_SIZE = 64 * 1024; // 64 KB
+	private static int DRAIN_POLL_TIME = 10; // 10 milliseconds
+	private static int IN_FLIGHT_WAIT_TIME = 5; // 5 milliseconds, see Worker.sendAsync
 
 	private GelfMetrics m;
-	private GelfClient c;
-	private LinkedBlockingDeque<GelfRequest> q;
-	private boolean running;
-	private int retryCount;
+	private Supplier<? extends IGelfTransport> transportFactory;
+	private boolean closeTransports;
+	private AbstractBoundedQueue<GelfRequest> q;
+	private int queueCapacity = MAX_QUEUE_SIZE;
+	private long queueMaxBytes = 0; // no byte limit
+	private boolean priorityQueue;
+	private volatile boolean running;
+	// set by shutdown, add then drops messages and workers stop lingering and replaying the spill
+	private volatile boolean closing;
+	// messages taken from the queue by workers, until their result is handled
+	private final AtomicInteger numHeld = new AtomicInteger();
 	private IGelfLogProvider logProvider;
+	private int numWorkers = 1;
+	private AtomicBoolean spillInUse;
+	private RetryPolicy retryPolicy;
+	private CircuitBreaker breaker;
+	private int batchMaxMessages = 1;
+	private int batchMaxBytes = 1_000_000;
+	private int lingerMs = 0;
+	private SpillQueue spill;
+	private GelfBufferPool bufferPool;
+	// where flushAggregator puts the repeat messages
+	private final Consumer<GelfRequest> repeatSink = this::addLargeReq;
+	// 0 to drop messages with long fields, else the bytes long fields are cut down to
+	private int maxFieldBytes = 0;
+	private volatile GelfSampler sampler;
+	private volatile GelfAggregator aggregator;
+	private final List<ScheduledRunner> runners = new ArrayList<>();
 
 	public GelfManager(String baseUrl) {
-		this.q = new LinkedBlockingDeque<>(MAX_QUEUE_SIZE);
+		this(() -> new GelfClient(baseUrl));
+	}
+
+	// eg. a GelfUdpClient, when lower send cost matters more than guaranteed delivery.
+	// With more than one worker, all workers share this transport and take turns on it
+	public GelfManager(IGelfTransport transport) {
+		this(() -> transport, false);
+	}
+
+	// Called once per worker, so that every worker gets its own connection. These transports are
+	// closed when their worker stops
+	public GelfManager(Supplier<? extends IGelfTransport> transportFactory) {
+		this(transportFactory, true);
+	}
+
+	private GelfManager(Supplier<? extends IGelfTransport> transportFactory, boolean closeTransports) {
 		this.m = new GelfMetrics();
-		this.c = new GelfClient(baseUrl);
+		this.q = newQueue(null);
+		this.transportFactory = transportFactory;
+		this.closeTransports = closeTransports;
+		this.spillInUse = new AtomicBoolean();
+		this.bufferPool = new GelfBufferPool(POOL_MAX_BUFFERS, POOL_BUFFER_SIZE, 2 * batchMaxBytes);
+		this.retryPolicy = new RetryPolicy(RETRY_BASE_WAIT_TIME, RETRY_MAX_WAIT_TIME, RETRY_MAX_COUNT);
+		this.breaker = new CircuitBreaker(BREAKER_FAILURE_COUNT, retryPolicy);
 	}
 
 	// FOR STARTING AND STOPPING
@@ -63,87 +174,348 @@ public class GelfManager implements Runnable {
 		this.logProvider = logProvider;
 	}
 
+	// Must be called before start()
+	public void setBatching(int maxMessages, int maxBytes, int lingerMs) {
+		if (maxMessages < 1 || maxBytes < 1 || lingerMs < 0) {
+			throw new IllegalArgumentException("Invalid batching config, maxMessages: " + maxMessages + ", maxBytes: "
+					+ maxBytes + ", lingerMs: " + lingerMs);
+		}
+		this.batchMaxMessages = maxMessages;
+		this.batchMaxBytes = maxBytes;
+		this.lingerMs = lingerMs;
+		// a batch can overshoot maxBytes by one message, keep some room for that
+		this.bufferPool = new GelfBufferPool(POOL_MAX_BUFFERS, POOL_BUFFER_SIZE, 2 * maxBytes);
+	}
+
+	// Must be called before start(). Instead of dropping messages with a field over 32,000 bytes, string
+	// fields over maxFieldBytes are cut down to it, and listed in a _truncated_fields field
+	public void setTruncation(int maxFieldBytes) {
+		if (maxFieldBytes < 1) {
+			throw new IllegalArgumentException("Invalid truncation config, maxFieldBytes: " + maxFieldBytes);
+		}
+		this.maxFieldBytes = maxFieldBytes;
+	}
+
+	// Must be called before start(). The queue then sends higher levels first, and when it is full drops
+	// the oldest message of the lowest level instead of the oldest message
+	public synchronized void enablePriorityQueue() {
+		priorityQueue = true;
+		q = newQueue(q);
+	}
+
+	// Must be called before start(). The queue drops messages when it has maxMessages, or when their
+	// estimated JSON size passes maxBytes, whichever comes first, so a burst of large messages cannot take
+	// more than maxBytes of heap. 0 for no byte limit. The default is 1000 messages of any size
+	public synchronized void setQueueCapacity(int maxMessages, long maxBytes) {
+		if (maxMessages <= RETRY_HEADROOM || maxBytes < 0) {
+			throw new IllegalArgumentException("Invalid queue capacity, maxMessages: " + maxMessages + ", maxBytes: "
+					+ maxBytes);
+		}
+		queueCapacity = maxMessages;
+		queueMaxBytes = maxBytes;
+		q = newQueue(q);
+	}
+
+	// A queue as configured, with the messages of old
+	private AbstractBoundedQueue<GelfRequest> newQueue(AbstractBoundedQueue<GelfRequest> old) {
+		AbstractBoundedQueue<GelfRequest> nq;
+		if (priorityQueue) {
+			nq = new PriorityBoundedQueue<>(queueCapacity, RETRY_HEADROOM, GelfLevel.values().length,
+					GelfManager::getPriority);
+		} else {
+			nq = new BoundedQueue<>(queueCapacity, RETRY_HEADROOM);
+		}
+		if (queueMaxBytes > 0) {
+			nq.setMaxBytes(queueMaxBytes, GelfManager::getQueuedBytes);
+		}
+		GelfRequest req;
+		while (old != null && (req = old.poll()) != null) {
+			offer(nq, req);
+		}
+		return nq;
+	}
+
+	// Rate limits messages per key before they are queued, see GelfSampler. null turns it off
+	public void setSampler(GelfSampler sampler) {
+		this.sampler = sampler;
+	}
+
+	// Collapses repeated messages into one with a _repeat_count, see GelfAggregator. null turns it off
+	public void setAggregator(GelfAggregator aggregator) {
+		GelfAggregator old = this.aggregator;
+		this.aggregator = aggregator;
+		if (old != null) {
+			old.flush(true, repeatSink);
+		}
+	}
+
+	// Must be called before start()
+	public void setNumWorkers(int numWorkers) {
+		if (numWorkers < 1) {
+			throw new IllegalArgumentException("Need at least one worker, numWorkers: " + numWorkers);
+		}
+		this.numWorkers = numWorkers;
+	}
+
+	// Must be called before start()
+	public void setRetryPolicy(RetryPolicy retryPolicy, CircuitBreaker breaker) {
+		this.retryPolicy = retryPolicy;
+		this.breaker = breaker;
+	}
+
+	// Must be called before start(). maxBytes is the disk budget for the spill files in dir
+	public void enableSpill(File dir, long maxBytes) throws IOException {
+		int segmentSize = (int) Math.min(SPILL_SEGMENT_SIZE, maxBytes / 4);
+		this.spill = new SpillQueue(dir, segmentSize, maxBytes);
+	}
+
 	public synchronized void start() {
+		startWorkers(w -> new Thread(w, "gelf-worker-" + w.id).start());
+	}
+
+	// Runs each worker as a task of executor instead of on a thread of its own. Workers block in their
+	// task until stop(), so executor needs a thread per worker, eg. virtual threads
+	public synchronized void start(Executor executor) {
+		startWorkers(executor::execute);
+	}
+
+	// Runs the workers as short tasks on scheduler, which can be shared by many managers (see
+	// ScheduledRunner). Only sending blocks a scheduler thread, so a GelfAsyncClient suits this best
+	public synchronized void startScheduled(ScheduledExecutorService scheduler) {
+		startWorkers(w -> {
+			w.scheduled = true;
+			ScheduledRunner r = new ScheduledRunner(scheduler, q, w);
+			runners.add(r);
+			r.wake();
+		});
+	}
+
+	private void startWorkers(Consumer<Worker> launcher) {
 		if (!running) {
-			Thread t = new Thread(this);
-			t.start();
 			running = true;
+			closing = false;
+			m.setNumWorkers(numWorkers);
+			for (int i = 0; i < numWorkers; i++) {
+				launcher.accept(new Worker(i));
+			}
 		}
 	}
 
 	public synchronized void stop() {
 		running = false;
+		// so that idle scheduled workers close now
+		for (ScheduledRunner r : runners) {
+			r.wake();
+		}
+		runners.clear();
+		flushAggregator(true);
 		GelfRequest msg = null;
 		while (!q.isEmpty()) { // log all pending messages
 			msg = getFirst();
-			dropRequest(msg);
+			overflowRequest(msg, DropReason.SHUTDOWN);
+		}
+		if (spill != null) {
+			spill.force();
 		}
 	}
 
-	public synchronized boolean isRunning() {
+	// Stops taking messages, then keeps sending what is queued, as usual with batching, all workers and
+	// retries, until all of it is sent or timeoutMs has passed. Only then is the rest spilled or dropped
+	// like stop() does
+	public DrainReport shutdown(long timeoutMs) {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		long numSuccess = m.getNumSuccess();
+		long numSpilled = m.getNumSpilled();
+		long numDropped = m.getNumDropped();
+		closing = true;
+		flushAggregator(true);
+		boolean timedOut = false;
+		while (running && !isDrained()) {
+			if (System.nanoTime() - deadline >= 0) {
+				timedOut = true;
+				break;
+			}
+			try {
+				Thread.sleep(DRAIN_POLL_TIME);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				timedOut = true;
+				break;
+			}
+		}
+		stop();
+		return new DrainReport(m.getNumSuccess() - numSuccess, m.getNumSpilled() - numSpilled,
+				m.getNumDropped() - numDropped, numHeld.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+				timedOut);
+	}
+
+	// Workers count a message as held before taking it, so the queue has to be checked first
+	private boolean isDrained() {
+		return q.isEmpty() && numHeld.get() == 0;
+	}
+
+	public boolean isRunning() {
 		return running;
 	}
 
 	// METRICES
-	public synchronized int getQueueSize() {
+	public int getQueueSize() {
 		return q.size();
 	}
 
-	public synchronized GelfMetrics getMetrics() {
+	// Estimated JSON size of the queued messages, 0 unless there is a byte limit (see setQueueCapacity)
+	public long getQueueBytes() {
+		return q.getBytes();
+	}
+
+	public GelfMetrics getMetrics() {
 		return m;
 	}
 
 	// FOR MANAGING MESSAGES
-	public synchronized void add(GelfRequest req) {
-		// we want to keep the latest requet, so remove first message if queue is full
-		if (q.remainingCapacity() < 10) {
-			GelfRequest dropReq = getFirst();
-			dropRequest(dropReq);
-		}
-		if (req.hasLongField()) {
-			dropRequest(req);
+	public void add(GelfRequest req) {
+		if (closing) {
+			dropRequest(req, DropReason.SHUTDOWN);
+			return;
+		}
+		GelfSampler s = sampler;
+		if (s != null && !s.sample(req)) {
+			// only counted, logging them would bring back the flood
+			m.addNumDropped(DropReason.SAMPLED, 1);
+			m.addNumDropped(req.getLevel(), 1);
+			return;
+		}
+		if (req.hasLongField() && maxFieldBytes == 0) {
+			dropRequest(req, DropReason.TOO_LARGE);
 			return;
 		}
-		q.offer(req);
+		GelfAggregator a = aggregator;
+		if (a != null && a.aggregate(req)) {
+			m.addNumAggregated(1);
+			return;
+		}
+		addLargeReq(req);
+	}
+
+	public void addLargeReq(GelfRequest req) {
+		// we want to keep the latest requet, so the queue removes the first message if it is full
+		req.enqueueNanos = System.nanoTime();
+		req.queuedBytes = req.getEstimatedSize();
 		m.addNumRecieved(1);
+		offer(q, req);
+		m.updateQueueSize(q.size());
 	}
 
-	public synchronized void addLargeReq(GelfRequest req) {
-		if (q.remainingCapacity() < 10) {
-			GelfRequest dropReq = getFirst();
-			dropRequest(dropReq);
+	// A large message can push out several small ones when there is a byte limit
+	private void offer(AbstractBoundedQueue<GelfRequest> q, GelfRequest req) {
+		GelfRequest dropReq = q.offer(req);
+		while (dropReq != null) {
+			m.addNumProcessed(1);
+			overflowRequest(dropReq, DropReason.QUEUE_FULL);
+			dropReq = q.evict();
 		}
-		q.offer(req);
-		m.addNumRecieved(1);
 	}
 
-	private synchronized GelfRequest getFirst() {
+	private GelfRequest getFirst() {
 		// Retrieves and removes the first element of this deque, or returns null if
 		// this deque is empty.
-		GelfRequest r = q.pollFirst();
+		GelfRequest r = q.poll();
+		if (r != null) {
+			m.addNumProcessed(+1);
+		}
+		return r;
+	}
+
+	// Same as getFirst, but waits up to timeoutNanos for a message
+	private GelfRequest getFirst(long timeoutNanos) throws InterruptedException {
+		GelfRequest r = q.poll(timeoutNanos, TimeUnit.NANOSECONDS);
 		if (r != null) {
 			m.addNumProcessed(+1);
 		}
 		return r;
 	}
 
-	private synchronized void retry(GelfRequest req) {
+	// getFirst for workers, counting the message as held
+	private GelfRequest getHeld() {
+		numHeld.incrementAndGet();
+		GelfRequest r = getFirst();
+		if (r == null) {
+			numHeld.decrementAndGet();
+		}
+		return r;
+	}
+
+	private GelfRequest getHeld(long timeoutNanos) throws InterruptedException {
+		numHeld.incrementAndGet();
+		GelfRequest r = null;
+		try {
+			r = getFirst(timeoutNanos);
+		} finally {
+			if (r == null) {
+				numHeld.decrementAndGet();
+			}
+		}
+		return r;
+	}
+
+	private void retry(GelfRequest req) {
 		// Inserts the specified element at the front of this deque if it is possible to
 		// do so immediately without violating capacity restrictions,returning true upon
 		// success and false if no space is currently available.
 		boolean result = q.offerFirst(req);
 		if (!result) {
-			dropRequest(req);
+			overflowRequest(req, DropReason.QUEUE_FULL);
 		} else {
 			m.addNumProcessed(-1);
 		}
 	}
 
-	private void dropRequest(GelfRequest req) {
+	// For messages that are fine but could not be kept in the queue or delivered
+	private void overflowRequest(GelfRequest req, DropReason reason) {
 		if (req == null) {
 			return;
 		}
-		m.addNumDropped(1);
+		if (spill != null && spillRequest(req)) {
+			return;
+		}
+		dropRequest(req, reason);
+	}
+
+	private boolean spillRequest(GelfRequest req) {
+		GelfBuffer b = bufferPool.acquire();
+		try {
+			if (GelfEncoder.encode(req, b, maxFieldBytes)) {
+				m.addNumTruncated(1);
+			}
+			if (spill.offer(b.getArray(), 0, b.getLength(0))) {
+				m.addNumSpilled(1);
+				return true;
+			}
+		} catch (Exception e) {
+			// spill is full or failing, the caller drops the message
+		} finally {
+			bufferPool.release(b);
+		}
+		return false;
+	}
+
+	private static long getQueuedBytes(GelfRequest req) {
+		return req.queuedBytes;
+	}
+
+	// EMERGENCY first, no level last
+	private static int getPriority(GelfRequest req) {
+		GelfLevel level = req.getLevel();
+		return level == null ? GelfLevel.DEBUG.ordinal() : level.ordinal();
+	}
+
+	private void dropRequest(GelfRequest req, DropReason reason) {
+		if (req == null) {
+			return;
+		}
+		m.addNumDropped(reason, 1);
+		m.addNumDropped(req.getLevel(), 1);
 		if (logProvider == null) {
 			return;
 		}
@@ -155,57 +527,443 @@ public class GelfManager implements Runnable {
 		}
 	}
 
+	// For messages from the spill, which are already encoded
+	private void dropJson(String json, DropReason reason) {
+		m.addNumDropped(reason, 1);
+		if (logProvider != null) {
+			logProvider.log(json);
+		}
+	}
+
+	// Runs a single worker on the calling thread, start() should be used instead
 	public void run() {
-		// Note: We do not reset retryCount because if some message has failed even
-		// after trying for RETRY_MAX_COUNT, then it is likely that the next message
-		// will also fail. This can make the queue too large. Thus after
-		// RETRY_MAX_COUNT, it is best to keep on trying to send messages
-		// and set it to 0 only when a message has been successfully delivered
-
-		GelfRequest req = null;
-		int errStatus = 0, waitTimeMs = 0;
-		while (isRunning()) {
-			waitTimeMs = 0;
-			errStatus = 0;
+		new Worker(0).run();
+	}
+
+	private class Worker implements Runnable, IQueueWorker {
+
+		private final int id;
+		private final IGelfTransport c;
+		// set if c keeps sends in flight, then each batch is handed over with its own list and buffer
+		private final IGelfAsyncTransport async;
+		// the batch being filled, it stays here between steps while lingering
+		private List<GelfRequest> batch;
+		// the encoded batch, sent as it is by the transport
+		private GelfBuffer payloads;
+		private long lingerDeadlineNanos;
+		// failed sends in a row, for the backoff of this worker. Async sends complete on other threads
+		private final AtomicInteger failureCount;
+		// nanoTime before which sends wait, after a failure. The sleep in run() is capped, so step() checks
+		// this again
+		private volatile long backoffUntilNanos;
+		// set when steps run on a shared scheduler, then nothing may block
+		private boolean scheduled;
+		// set when the async transport had no room for the batch, it is sent on the next step
+		private boolean unsent;
+		private boolean unsentFromSpill;
+
+		private Worker(int id) {
+			this.id = id;
+			this.c = transportFactory.get();
+			this.c.setMetrics(m);
+			this.async = c instanceof IGelfAsyncTransport ? (IGelfAsyncTransport) c : null;
+			this.failureCount = new AtomicInteger();
+			this.batch = new ArrayList<>();
+			this.payloads = bufferPool.acquire();
+		}
+
+		public void run() {
+			long waitTimeMs;
+			while (isRunning()) {
+				waitTimeMs = step();
+				try {
+					if (waitTimeMs == IDLE) {
+						awaitRequest(getIdleWaitMs());
+						continue;
+					}
+					// Read on Thread.sleep(0) also
+					// https://stackoverflow.com/questions/3257708/thread-sleep0-what-is-the-normal-behavior
+					Thread.sleep(Math.min(waitTimeMs, EMPTY_WAIT_TIME));
+				} catch (InterruptedException e) {
+					// eg. the executor given to start(Executor) was shut down
+					stop();
+					break;
+				}
+
+			}
+			close();
+		}
+
+		public long step() {
+			flushAggregator(false);
+			long backoffNanos = backoffUntilNanos - System.nanoTime();
+			if (backoffNanos > 0) {
+				return TimeUnit.NANOSECONDS.toMillis(backoffNanos) + 1;
+			}
+			long waitTimeMs = breaker.tryAcquire();
+			if (waitTimeMs != 0) {
+				return waitTimeMs;
+			}
+			if (unsent) {
+				return sendAsync(unsentFromSpill);
+			}
+			// older messages are in the spill, send those first while delivery works. Not while a batch
+			// from the queue lingers, it would be sent after them
+			boolean useSpill = spill != null && !closing && batch.isEmpty() && failureCount.get() == 0
+					&& spillInUse.compareAndSet(false, true);
+			return sendBatch(useSpill);
+		}
+
+		// EMPTY_WAIT_TIME, or less so that aggregator windows are closed on time
+		public long getIdleWaitMs() {
+			if (closing) {
+				return DRAIN_POLL_TIME;
+			}
+			GelfAggregator a = aggregator;
+			return a == null ? EMPTY_WAIT_TIME : Math.min(EMPTY_WAIT_TIME, a.getWindowMs());
+		}
+
+		public boolean isRunning() {
+			return GelfManager.this.isRunning();
+		}
+
+		public void close() {
+			// a batch that was still lingering (only when scheduled) or that the async transport had no room for
+			for (GelfRequest req : batch) {
+				overflowRequest(req, DropReason.SHUTDOWN);
+			}
+			numHeld.addAndGet(-batch.size());
+			batch.clear();
+			if (closeTransports) {
+				c.close();
+			}
+			bufferPool.release(payloads);
+		}
+
+		// Sends one batch and returns the time to wait before the next one, or IDLE
+		private long sendBatch(boolean useSpill) {
+			boolean fromSpill = false;
 			try {
-				req = getFirst();
-				if (req != null) {
-					c.send(req);
-					errStatus = 200;
-					retryCount = 0;
-					m.addNumSuccess(1);
+				fromSpill = useSpill && fillSpillBatch(payloads);
+			} finally {
+				if (useSpill && !fromSpill) {
+					spillInUse.set(false);
 				}
+			}
+			if (!fromSpill) {
+				long lingerNanos = fillBatch();
+				if (lingerNanos > 0) {
+					breaker.release();
+					return TimeUnit.NANOSECONDS.toMillis(lingerNanos) + 1;
+				}
+			}
+			if (payloads.isEmpty()) {
+				breaker.release();
+				return IDLE;
+			}
+			if (async != null) {
+				return sendAsync(fromSpill);
+			}
+
+			int status;
+			GelfPartialSendException partial = null;
+			long start = System.nanoTime();
+			try {
+				c.send(payloads);
+				status = 200;
+			} catch (GelfPartialSendException e) {
+				// the rest of the batch was sent, retrying it as a whole would send that again
+				partial = e;
+				status = 200;
 			} catch (HttpStatusCodeException e) {
-				errStatus = e.getRawStatusCode();
-				retryCount++;
+				status = e.getRawStatusCode();
 			} catch (Exception e) {
-				errStatus = 9999; // Some uknown issue has happened
-				retryCount++;
-			}
-
-			if (errStatus == 200) {
-				// request sent successfully, do nothing!
-				waitTimeMs = 0;
-			} else if (errStatus == 0) {
-				waitTimeMs = EMPTY_WAIT_TIME; // no request, sleep for 1 seconds
-			} else if (retryCount < RETRY_MAX_COUNT) {
-				// error in sending, requeue & sleep for RETRY_SLEEP_TIME seconds
-				// So total maximum we will wait for RETRY_MAX_COUNT*RETRY_SLEEP_TIME seconds
-				// This is 10 minutes for now
+				status = UNKNOWN_ERROR_STATUS; // Some uknown issue has happened
+			} finally {
+				m.recordSendLatency(System.nanoTime() - start);
+			}
+			try {
+				if (partial != null) {
+					return onPartialResult(partial, fromSpill, batch, payloads);
+				}
+				return onResult(status, fromSpill, batch, payloads);
+			} finally {
+				numHeld.addAndGet(-batch.size());
+				batch.clear();
+				payloads.reset();
+				if (fromSpill) {
+					spillInUse.set(false);
+				}
+			}
+		}
+
+		// Hands the batch over to the transport, the callback handles the result. The spill stays in use
+		// until a batch from it completes, as it is only removed from the spill then. If the transport has
+		// its maximum in flight, waits for room (not when scheduled, the shared thread must not block) and
+		// otherwise keeps the batch for the next step. Returns the time to wait before that
+		private long sendAsync(boolean fromSpill) {
+			AsyncResult result = new AsyncResult(fromSpill, batch, payloads);
+			try {
+				if (!async.sendAsync(payloads, result, scheduled ? 0 : EMPTY_WAIT_TIME)) {
+					unsent = true;
+					unsentFromSpill = fromSpill;
+					breaker.release();
+					return scheduled ? IN_FLIGHT_WAIT_TIME : 0;
+				}
+			} catch (Exception e) {
+				result.failed(e);
+			}
+			// the callback may have run already, it only uses the batch and buffer of result
+			unsent = false;
+			batch = new ArrayList<>();
+			payloads = bufferPool.acquire();
+			return 0;
+		}
+
+		// Adds messages from the queue to the batch until it is full. Returns 0 if the batch should be sent
+		// now, or when scheduled, the nanos left to linger for more messages. Otherwise it lingers by
+		// waiting on the queue
+		private long fillBatch() {
+			while (batch.size() < batchMaxMessages && payloads.getSize() < batchMaxBytes) {
+				GelfRequest req = getHeld();
+				if (req == null) {
+					// wait for more messages only if a batch has been started
+					long lingerNanos = lingerDeadlineNanos - System.nanoTime();
+					if (batch.isEmpty() || lingerMs == 0 || lingerNanos <= 0 || closing) {
+						return 0;
+					}
+					if (scheduled) {
+						return lingerNanos;
+					}
+					try {
+						req = getHeld(lingerNanos);
+					} catch (InterruptedException e) {
+						// send what we have, the sleep in run() will see the interrupt and stop
+						Thread.currentThread().interrupt();
+						return 0;
+					}
+					if (req == null) {
+						return 0; // linger is over
+					}
+				}
+				long start = System.nanoTime();
+				try {
+					if (GelfEncoder.encode(req, payloads, maxFieldBytes)) {
+						m.addNumTruncated(1);
+					}
+				} catch (Exception e) {
+					// this request can never be sent, no point retrying it
+					dropRequest(req, DropReason.ENCODING_FAILED);
+					numHeld.decrementAndGet();
+					continue;
+				}
+				m.recordEncodeLatency(System.nanoTime() - start);
+				if (batch.isEmpty()) {
+					lingerDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+				}
+				batch.add(req);
+			}
+			return 0;
+		}
+
+		private long onResult(int status, boolean fromSpill, List<GelfRequest> batch, GelfBuffer payloads) {
+			int n = payloads.getNumMessages();
+			if (status == 200) {
+				breaker.onSuccess();
+				failureCount.set(0);
+				m.addNumSuccess(n);
+				m.addNumWorkerSuccess(id, n);
+				long now = System.nanoTime();
+				for (GelfRequest req : batch) {
+					m.recordEnqueueLatency(now - req.enqueueNanos);
+				}
+				if (fromSpill) {
+					removeFromSpill(n);
+					m.addNumReplayed(n);
+				}
+				return 0;
+			}
+			m.addNumWorkerFailed(id, n);
+			if (!RetryPolicy.isRetryable(status)) {
+				// server is fine but rejected the messages, sending them again will not help
+				breaker.onSuccess();
+				failureCount.set(0);
+				if (fromSpill) {
+					removeFromSpill(n);
+					for (int i = 0; i < n; i++) {
+						dropJson(payloads.getMessage(i), DropReason.REJECTED);
+					}
+				}
+				for (GelfRequest req : batch) {
+					dropRequest(req, DropReason.REJECTED);
+				}
+				return 0;
+			}
+
+			// messages from the spill stay there, only the queue batch needs requeuing.
+			// Requeue in reverse so that the batch keeps its order at the head of the queue
+			for (int i = batch.size() - 1; i >= 0; i--) {
+				requeue(batch.get(i));
+			}
+			return backoff();
+		}
+
+		// Some messages of the batch were sent. Those too large are dropped, the failed ones are retried
+		// like a failed batch, only they are sent again
+		private long onPartialResult(GelfPartialSendException e, boolean fromSpill, List<GelfRequest> batch,
+				GelfBuffer payloads) {
+			int n = payloads.getNumMessages();
+			int[] tooLarge = e.getTooLargeIndexes();
+			int[] failed = e.getFailedIndexes();
+			boolean[] unsent = new boolean[n];
+			for (int i : tooLarge) {
+				unsent[i] = true;
+				if (fromSpill) {
+					dropJson(payloads.getMessage(i), DropReason.TOO_LARGE);
+				} else {
+					dropRequest(batch.get(i), DropReason.TOO_LARGE);
+				}
+			}
+			for (int i : failed) {
+				unsent[i] = true;
+			}
+			int numSent = n - tooLarge.length - failed.length;
+			m.addNumSuccess(numSent);
+			m.addNumWorkerSuccess(id, numSent);
+			m.addNumWorkerFailed(id, failed.length);
+			long now = System.nanoTime();
+			for (int i = 0; i < batch.size(); i++) {
+				if (!unsent[i]) {
+					m.recordEnqueueLatency(now - batch.get(i).enqueueNanos);
+				}
+			}
+			if (fromSpill) {
+				// the spill is only removed from at its head, so the failed messages go to its end again
+				removeFromSpill(n);
+				m.addNumReplayed(numSent);
+				for (int i : failed) {
+					respill(payloads, i);
+				}
+			}
+			if (failed.length == 0) {
+				breaker.onSuccess();
+				failureCount.set(0);
+				return 0;
+			}
+			if (!fromSpill) {
+				for (int j = failed.length - 1; j >= 0; j--) {
+					requeue(batch.get(failed[j]));
+				}
+			}
+			return backoff();
+		}
+
+		// For a message of a failed send
+		private void requeue(GelfRequest req) {
+			if (!isRunning()) {
+				// nobody takes it from the queue anymore
+				overflowRequest(req, DropReason.SHUTDOWN);
+			} else if (retryPolicy.canRetry(req.incrementAttempts())) {
 				retry(req);
-				waitTimeMs = RETRY_WAIT_TIME;
 			} else {
-				dropRequest(req);
+				overflowRequest(req, DropReason.RETRIES_EXHAUSTED);
 			}
+		}
 
-			try {
-				// Read on Thread.sleep(0) also
-				// https://stackoverflow.com/questions/3257708/thread-sleep0-what-is-the-normal-behavior
-				Thread.sleep(waitTimeMs);
-			} catch (InterruptedException e) {
-				stop();
+		// After a retryable failure, returns the time to wait before the next send
+		private long backoff() {
+			breaker.onFailure();
+			int failures = failureCount.incrementAndGet();
+			long delayMs = retryPolicy.getDelayMs(failures);
+			backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+			return delayMs;
+		}
+
+		// Handles the result of an async send like sendBatch does, on a thread of the transport
+		private class AsyncResult implements IGelfSendCallback {
+
+			private final boolean fromSpill;
+			private final List<GelfRequest> batch;
+			private final GelfBuffer payloads;
+			private final long startNanos;
+
+			private AsyncResult(boolean fromSpill, List<GelfRequest> batch, GelfBuffer payloads) {
+				this.fromSpill = fromSpill;
+				this.batch = batch;
+				this.payloads = payloads;
+				this.startNanos = System.nanoTime();
 			}
 
+			public void completed(int status) {
+				// any 2xx, Graylog answers 202
+				onComplete(status >= 200 && status < 300 ? 200 : status);
+			}
+
+			public void failed(Exception e) {
+				onComplete(UNKNOWN_ERROR_STATUS);
+			}
+
+			private void onComplete(int status) {
+				m.recordSendLatency(System.nanoTime() - startNanos);
+				try {
+					onResult(status, fromSpill, batch, payloads);
+				} finally {
+					numHeld.addAndGet(-batch.size());
+					bufferPool.release(payloads);
+					if (fromSpill) {
+						spillInUse.set(false);
+					}
+				}
+			}
+
+		}
+
+	}
+
+	// Queues the repeat messages of the aggregator windows that are over, or of all windows
+	private void flushAggregator(boolean all) {
+		GelfAggregator a = aggregator;
+		if (a != null) {
+			a.flush(all, repeatSink);
+		}
+	}
+
+	// Blocks until a message is added or waitTimeMs has passed
+	private void awaitRequest(long waitTimeMs) throws InterruptedException {
+		q.await(waitTimeMs, TimeUnit.MILLISECONDS);
+	}
+
+	// Returns true if there were messages in the spill
+	private boolean fillSpillBatch(GelfBuffer payloads) {
+		try {
+			for (byte[] data : spill.peek(batchMaxMessages, batchMaxBytes)) {
+				payloads.write(data, 0, data.length);
+				payloads.endMessage();
+			}
+		} catch (IOException e) {
+			// cannot read the spill, send from the queue instead
+			payloads.reset();
+		}
+		return !payloads.isEmpty();
+	}
+
+	// Puts message i of a batch replayed from the spill back at its end
+	private void respill(GelfBuffer payloads, int i) {
+		try {
+			if (spill.offer(payloads.getArray(), payloads.getOffset(i), payloads.getLength(i))) {
+				return;
+			}
+		} catch (Exception e) {
+			// spill is full or failing, the message is dropped
+		}
+		dropJson(payloads.getMessage(i), DropReason.SEND_FAILED);
+	}
+
+	private void removeFromSpill(int count) {
+		try {
+			spill.remove(count);
+		} catch (IOException e) {
+			// these will be sent again, better than losing them
 		}
 	}
 
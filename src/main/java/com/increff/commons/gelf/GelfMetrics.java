@@ -14,44 +14,208 @@
 
 package com.increff.commons.gelf;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.metrics.LatencyHistogram;
+
+/*
+ * Counters are LongAdders, which spread concurrent updates over cells instead of contending on one
+ * value, and do not overflow. The getters read the live values, snapshot() copies everything at once
+ * (counter by counter, so without stopping the senders) into an immutable GelfMetricsSnapshot.
+ *
+ * Latencies are in nanoseconds:
+ * - enqueue: from add to the successful send of the message (not for messages replayed from the spill)
+ * - send: one send of a batch by the transport, including failed ones
+ * - encode: encoding one message
+ */
 public class GelfMetrics {
 
-	private int numProcessed;
-	private int numSuccess;
-	private int numDropped;
-	private int numReceived;
+	private final LongAdder numProcessed = new LongAdder();
+	private final LongAdder numSuccess = new LongAdder();
+	private final LongAdder numReceived = new LongAdder();
+	private final LongAdder[] numDropped = newAdders(DropReason.values().length);
+	// the same drops by GelfLevel, except for messages replayed from the spill
+	private final LongAdder[] numDroppedByLevel = newAdders(GelfLevel.values().length);
+	// messages written to and delivered from the disk spill
+	private final LongAdder numSpilled = new LongAdder();
+	private final LongAdder numReplayed = new LongAdder();
+	// messages sent with one or more fields cut down, see GelfManager.setTruncation
+	private final LongAdder numTruncated = new LongAdder();
+	// duplicates collapsed into a repeat message, see GelfAggregator
+	private final LongAdder numAggregated = new LongAdder();
+	// payload bytes before and after transport compression, equal for uncompressed messages
+	private final LongAdder numRawBytes = new LongAdder();
+	private final LongAdder numCompressedBytes = new LongAdder();
+	// largest queue size seen by add
+	private final AtomicInteger queueHighWaterMark = new AtomicInteger();
+	// per worker of the GelfManager, messages delivered and messages in failed sends
+	private volatile AtomicLongArray workerSuccess = new AtomicLongArray(1);
+	private volatile AtomicLongArray workerFailed = new AtomicLongArray(1);
+	private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	private final LatencyHistogram encodeLatency = new LatencyHistogram();
+
+	public long getNumSuccess() {
+		return numSuccess.sum();
+	}
+
+	public long getNumProcessed() {
+		return numProcessed.sum();
+	}
+
+	// all reasons
+	public long getNumDropped() {
+		long n = 0;
+		for (LongAdder a : numDropped) {
+			n += a.sum();
+		}
+		return n;
+	}
+
+	public long getNumDropped(DropReason reason) {
+		return numDropped[reason.ordinal()].sum();
+	}
+
+	public long getNumDropped(GelfLevel level) {
+		return numDroppedByLevel[level.ordinal()].sum();
+	}
+
+	public long getNumReceived() {
+		return numReceived.sum();
+	}
+
+	public long getNumSpilled() {
+		return numSpilled.sum();
+	}
+
+	public long getNumReplayed() {
+		return numReplayed.sum();
+	}
+
+	public long getNumTruncated() {
+		return numTruncated.sum();
+	}
 
-	public synchronized int getNumSuccess() {
-		return numSuccess;
+	public long getNumAggregated() {
+		return numAggregated.sum();
 	}
 
-	public synchronized int getNumProcessed() {
-		return numProcessed;
+	public int getNumWorkers() {
+		return workerSuccess.length();
 	}
 
-	public synchronized int getNumDropped() {
-		return numDropped;
+	public long getNumSuccess(int worker) {
+		return workerSuccess.get(worker);
 	}
 
-	public synchronized int getNumReceived() {
-		return numReceived;
+	public long getNumFailed(int worker) {
+		return workerFailed.get(worker);
+	}
+
+	public long getNumRawBytes() {
+		return numRawBytes.sum();
+	}
+
+	public long getNumCompressedBytes() {
+		return numCompressedBytes.sum();
+	}
+
+	public int getQueueHighWaterMark() {
+		return queueHighWaterMark.get();
+	}
+
+	public GelfMetricsSnapshot snapshot() {
+		return new GelfMetricsSnapshot(this, enqueueLatency.snapshot(), sendLatency.snapshot(),
+				encodeLatency.snapshot());
 	}
 
 	// protected HELPER METHODS
-	protected synchronized void addNumProcessed(int val) {
-		numProcessed += val;
+	protected void addNumProcessed(int val) {
+		numProcessed.add(val);
+	}
+
+	protected void addNumRecieved(int val) {
+		numReceived.add(val);
+	}
+
+	protected void addNumSuccess(int val) {
+		numSuccess.add(val);
+	}
+
+	protected void addNumDropped(DropReason reason, int val) {
+		numDropped[reason.ordinal()].add(val);
+	}
+
+	// null level is not counted
+	protected void addNumDropped(GelfLevel level, int val) {
+		if (level != null) {
+			numDroppedByLevel[level.ordinal()].add(val);
+		}
+	}
+
+	protected void addNumTruncated(int val) {
+		numTruncated.add(val);
+	}
+
+	protected void addNumAggregated(int val) {
+		numAggregated.add(val);
+	}
+
+	protected void addNumSpilled(int val) {
+		numSpilled.add(val);
+	}
+
+	protected void addNumReplayed(int val) {
+		numReplayed.add(val);
+	}
+
+	protected void setNumWorkers(int numWorkers) {
+		workerSuccess = new AtomicLongArray(numWorkers);
+		workerFailed = new AtomicLongArray(numWorkers);
+	}
+
+	protected void addNumWorkerSuccess(int worker, int val) {
+		workerSuccess.addAndGet(worker, val);
+	}
+
+	protected void addNumWorkerFailed(int worker, int val) {
+		workerFailed.addAndGet(worker, val);
+	}
+
+	protected void addBytes(long rawBytes, long compressedBytes) {
+		numRawBytes.add(rawBytes);
+		numCompressedBytes.add(compressedBytes);
+	}
+
+	protected void updateQueueSize(int size) {
+		// a plain read in the common case, where the mark is not exceeded
+		int mark = queueHighWaterMark.get();
+		while (size > mark && !queueHighWaterMark.compareAndSet(mark, size)) {
+			mark = queueHighWaterMark.get();
+		}
+	}
+
+	protected void recordEnqueueLatency(long nanos) {
+		enqueueLatency.record(nanos);
 	}
 
-	protected synchronized void addNumRecieved(int val) {
-		numReceived += val;
+	protected void recordSendLatency(long nanos) {
+		sendLatency.record(nanos);
 	}
 
-	protected synchronized void addNumSuccess(int val) {
-		numSuccess += val;
+	protected void recordEncodeLatency(long nanos) {
+		encodeLatency.record(nanos);
 	}
 
-	protected synchronized void addNumDropped(int val) {
-		numDropped += val;
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
 	}
 
 }
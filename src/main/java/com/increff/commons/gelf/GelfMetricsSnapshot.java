@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.metrics.LatencySnapshot;
+
+// An immutable copy of GelfMetrics, see GelfMetrics.snapshot()
+public class GelfMetricsSnapshot {
+
+	private final long timestampMillis;
+	private final long numReceived;
+	private final long numProcessed;
+	private final long numSuccess;
+	private final long numDropped;
+	private final Map<DropReason, Long> numDroppedByReason;
+	private final Map<GelfLevel, Long> numDroppedByLevel;
+	private final long numSpilled;
+	private final long numReplayed;
+	private final long numTruncated;
+	private final long numAggregated;
+	private final long numRawBytes;
+	private final long numCompressedBytes;
+	private final int queueHighWaterMark;
+	private final long[] workerSuccess;
+	private final long[] workerFailed;
+	private final LatencySnapshot enqueueLatency;
+	private final LatencySnapshot sendLatency;
+	private final LatencySnapshot encodeLatency;
+
+	GelfMetricsSnapshot(GelfMetrics m, LatencySnapshot enqueueLatency, LatencySnapshot sendLatency,
+			LatencySnapshot encodeLatency) {
+		this.timestampMillis = System.currentTimeMillis();
+		this.numReceived = m.getNumReceived();
+		this.numProcessed = m.getNumProcessed();
+		this.numSuccess = m.getNumSuccess();
+		Map<DropReason, Long> dropped = new EnumMap<>(DropReason.class);
+		long total = 0;
+		for (DropReason reason : DropReason.values()) {
+			long n = m.getNumDropped(reason);
+			dropped.put(reason, n);
+			total += n;
+		}
+		this.numDropped = total;
+		this.numDroppedByReason = Collections.unmodifiableMap(dropped);
+		Map<GelfLevel, Long> droppedByLevel = new EnumMap<>(GelfLevel.class);
+		for (GelfLevel level : GelfLevel.values()) {
+			droppedByLevel.put(level, m.getNumDropped(level));
+		}
+		this.numDroppedByLevel = Collections.unmodifiableMap(droppedByLevel);
+		this.numSpilled = m.getNumSpilled();
+		this.numReplayed = m.getNumReplayed();
+		this.numTruncated = m.getNumTruncated();
+		this.numAggregated = m.getNumAggregated();
+		this.numRawBytes = m.getNumRawBytes();
+		this.numCompressedBytes = m.getNumCompressedBytes();
+		this.queueHighWaterMark = m.getQueueHighWaterMark();
+		int numWorkers = m.getNumWorkers();
+		this.workerSuccess = new long[numWorkers];
+		this.workerFailed = new long[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workerSuccess[i] = m.getNumSuccess(i);
+			workerFailed[i] = m.getNumFailed(i);
+		}
+		this.enqueueLatency = enqueueLatency;
+		this.sendLatency = sendLatency;
+		this.encodeLatency = encodeLatency;
+	}
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public long getNumReceived() {
+		return numReceived;
+	}
+
+	public long getNumProcessed() {
+		return numProcessed;
+	}
+
+	public long getNumSuccess() {
+		return numSuccess;
+	}
+
+	public long getNumDropped() {
+		return numDropped;
+	}
+
+	public long getNumDropped(DropReason reason) {
+		return numDroppedByReason.get(reason);
+	}
+
+	public Map<DropReason, Long> getNumDroppedByReason() {
+		return numDroppedByReason;
+	}
+
+	public long getNumDropped(GelfLevel level) {
+		return numDroppedByLevel.get(level);
+	}
+
+	public Map<GelfLevel, Long> getNumDroppedByLevel() {
+		return numDroppedByLevel;
+	}
+
+	public long getNumSpilled() {
+		return numSpilled;
+	}
+
+	public long getNumReplayed() {
+		return numReplayed;
+	}
+
+	public long getNumTruncated() {
+		return numTruncated;
+	}
+
+	public long getNumAggregated() {
+		return numAggregated;
+	}
+
+	public long getNumRawBytes() {
+		return numRawBytes;
+	}
+
+	public long getNumCompressedBytes() {
+		return numCompressedBytes;
+	}
+
+	public int getQueueHighWaterMark() {
+		return queueHighWaterMark;
+	}
+
+	public int getNumWorkers() {
+		return workerSuccess.length;
+	}
+
+	public long getNumSuccess(int worker) {
+		return workerSuccess[worker];
+	}
+
+	public long getNumFailed(int worker) {
+		return workerFailed[worker];
+	}
+
+	public LatencySnapshot getEnqueueLatency() {
+		return enqueueLatency;
+	}
+
+	public LatencySnapshot getSendLatency() {
+		return sendLatency;
+	}
+
+	public LatencySnapshot getEncodeLatency() {
+		return encodeLatency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("GelfMetricsSnapshot{received=%d success=%d dropped=%s droppedByLevel=%s spilled=%d "
+				+ "replayed=%d aggregated=%d bytes=%d/%d queueHighWaterMark=%d enqueue=[%s] send=[%s] encode=[%s]}",
+				numReceived, numSuccess, numDroppedByReason, numDroppedByLevel, numSpilled, numReplayed, numAggregated,
+				numCompressedBytes, numRawBytes, queueHighWaterMark, enqueueLatency, sendLatency, encodeLatency);
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+
+/*
+ * Thrown by a transport that sent only some messages of a batch, eg. GelfUdpClient, where every message
+ * is a datagram of its own. Messages at getTooLargeIndexes() are over a limit of the protocol and can
+ * never be sent, those at getFailedIndexes() failed with the cause and can be retried, all others were
+ * sent. GelfManager drops the first as TOO_LARGE, retries the second and counts the rest as sent, so the
+ * batch is not sent again as a whole.
+ */
+public class GelfPartialSendException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int[] tooLargeIndexes;
+	private final int[] failedIndexes;
+
+	public GelfPartialSendException(String message, int[] tooLargeIndexes, int[] failedIndexes, IOException cause) {
+		super(message, cause);
+		this.tooLargeIndexes = tooLargeIndexes;
+		this.failedIndexes = failedIndexes;
+	}
+
+	// Indexes in the GelfBuffer given to send, in order
+	public int[] getTooLargeIndexes() {
+		return tooLargeIndexes;
+	}
+
+	public int[] getFailedIndexes() {
+		return failedIndexes;
+	}
+
+}
@@ -37,6 +37,12 @@ import java.util.Map;
 
 public class GelfRequest {
 
+	// JSON of version, timestamp, host, level and the names of the fixed fields, roughly
+	private static final int ENVELOPE_SIZE = 100;
+	// quotes, colon and comma around an additional field
+	private static final int FIELD_OVERHEAD = 6;
+	private static final int NUMBER_SIZE = 20;
+
 	private GelfVersion version;
 	private String host;
 	private String shortMessage;
@@ -45,6 +51,18 @@ public class GelfRequest {
 	private GelfLevel level;
 	private Map<String, Object> additionalFields;
 	private boolean hasLongField;
+	// UTF-8 sizes of the string additional fields, so that they are measured only once
+	private Map<String, Integer> fieldSizes;
+	private int shortMessageSize;
+	private int fullMessageSize;
+	// estimated JSON size of the additional fields, kept up to date as they are set
+	private int additionalFieldsSize;
+	// failed delivery attempts, maintained by GelfManager
+	private int attempts;
+	// System.nanoTime() when GelfManager queued this, for its enqueue latency
+	long enqueueNanos;
+	// getEstimatedSize() when GelfManager queued this, what it counts for in the queue's byte limit
+	int queuedBytes;
 
 	public GelfRequest(String shortMessage) {
 		this(shortMessage, "localhost");
@@ -59,11 +77,12 @@ public class GelfRequest {
 		this.host = host;
 		this.version = version;
 		additionalFields = new HashMap<>();
+		fieldSizes = new HashMap<>();
 		timestamp = getEpochInSeconds(System.currentTimeMillis());
 		level = GelfLevel.ALERT;
 		hasLongField = false;
 
-		markLongField(shortMessage);
+		shortMessageSize = markLongField(shortMessage);
 
 	}
 
@@ -88,7 +107,7 @@ public class GelfRequest {
 	}
 
 	public void setFullMessage(String fullMessage) {
-		markLongField(fullMessage);
+		fullMessageSize = markLongField(fullMessage);
 		this.fullMessage = fullMessage;
 	}
 
@@ -112,13 +131,61 @@ public class GelfRequest {
 		return Collections.unmodifiableMap(additionalFields);
 	}
 
+	// A new request with the same content, for GelfAggregator
+	GelfRequest copy() {
+		GelfRequest req = new GelfRequest(shortMessage, host, version);
+		req.timestamp = timestamp;
+		req.level = level;
+		req.fullMessage = fullMessage;
+		req.fullMessageSize = fullMessageSize;
+		req.additionalFields.putAll(additionalFields);
+		req.fieldSizes.putAll(fieldSizes);
+		req.additionalFieldsSize = additionalFieldsSize;
+		req.hasLongField = hasLongField;
+		return req;
+	}
+
+	// without the unmodifiable view of getAdditionalFields
+	Object getAdditionalField(String key) {
+		return additionalFields.get(key);
+	}
+
 	public void addAdditionalField(String key, String value) {
-		markLongField(value);
+		int size = markLongField(value);
+		removeFieldSize(key);
 		additionalFields.put(key, value);
+		fieldSizes.put(key, size);
+		additionalFieldsSize += key.length() + FIELD_OVERHEAD + size;
 	}
 
 	public void addAdditionalField(String key, Number value) {
+		removeFieldSize(key);
 		additionalFields.put(key, value);
+		fieldSizes.remove(key);
+		additionalFieldsSize += key.length() + FIELD_OVERHEAD + NUMBER_SIZE;
+	}
+
+	// For GelfAggregator, fields of the first message that the repeat does not stand for
+	void removeAdditionalField(String key) {
+		removeFieldSize(key);
+		additionalFields.remove(key);
+		fieldSizes.remove(key);
+	}
+
+	// For a field that is set again
+	private void removeFieldSize(String key) {
+		if (!additionalFields.containsKey(key)) {
+			return;
+		}
+		Integer size = fieldSizes.get(key);
+		additionalFieldsSize -= key.length() + FIELD_OVERHEAD + (size == null ? NUMBER_SIZE : size);
+	}
+
+	// About the size of the encoded message, from the field sizes measured when they were set, so it is
+	// cheap enough to call on every add
+	int getEstimatedSize() {
+		int hostSize = host == null ? 0 : host.length();
+		return ENVELOPE_SIZE + hostSize + shortMessageSize + fullMessageSize + additionalFieldsSize;
 	}
 
 	@Override
@@ -135,10 +202,29 @@ public class GelfRequest {
 		return hasLongField;
 	}
 
-	private void markLongField(String value) {
-		boolean isLongField = GelfEncoder.isLongField(value);
-		hasLongField = hasLongField || isLongField;
+	int incrementAttempts() {
+		return ++attempts;
+	}
+
+	int getShortMessageSize() {
+		return shortMessageSize;
+	}
+
+	int getFullMessageSize() {
+		return fullMessageSize;
+	}
+
+	// UTF-8 size of a string additional field, 0 if there is no such field
+	int getFieldSize(String key) {
+		Integer size = fieldSizes.get(key);
+		return size == null ? 0 : size;
+	}
 
+	// Returns the UTF-8 size of value
+	private int markLongField(String value) {
+		int size = GelfEncoder.getSize(value);
+		hasLongField = hasLongField || size > GelfEncoder.MAX_FIELD_SIZE;
+		return size;
 	}
 
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Rate limits messages per key in GelfManager.add, so that a flood of identical messages (eg. the same
+ * _proxy_call failing during an incident) cannot evict everything else from the queue.
+ *
+ * The key is made of the values of keyFields: names of additional fields (with or without the
+ * leading "_"), or "short_message" / "host" / "level", see GelfField. Each key gets a token bucket
+ * of burst messages that refills at permitsPerSecond. Messages over the rate are dropped, and the
+ * next message of that key that passes gets a _sample_rate field: 1 / (messages dropped since the
+ * last one that passed + 1). So a message with _sample_rate 0.01 stands for about 100 messages.
+ * Messages that were not sampled get no field.
+ *
+ * The bucket is kept as one AtomicLong (the time at which it is full again, aka GCRA), so sample()
+ * is a map lookup and a CAS on the caller's thread. At most maxKeys keys are tracked, keys beyond
+ * that share one bucket until idle keys are removed. The map is swept for idle keys at most once per
+ * refill time of a bucket (SWEEP_MIN_INTERVAL at least), so a storm of new keys does not scan it on
+ * every message.
+ */
+public class GelfSampler {
+
+	static final String SAMPLE_RATE_FIELD = "_sample_rate";
+	private static int DEFAULT_MAX_KEYS = 10_000;
+	private static long SWEEP_MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final GelfField[] keyFields;
+	private final long intervalNanos;
+	private final long burstNanos;
+	private final int maxKeys;
+	private final ConcurrentHashMap<Object, Bucket> buckets;
+	private final Bucket overflow;
+	private final long sweepIntervalNanos;
+	// nanoTime after which the next sweep for idle keys may run
+	private final AtomicLong nextSweepNanos;
+
+	public GelfSampler(double permitsPerSecond, int burst, String... keyFields) {
+		this(permitsPerSecond, burst, DEFAULT_MAX_KEYS, keyFields);
+	}
+
+	public GelfSampler(double permitsPerSecond, int burst, int maxKeys, String... keyFields) {
+		if (permitsPerSecond <= 0 || burst < 1 || maxKeys < 1 || keyFields.length == 0) {
+			throw new IllegalArgumentException("Invalid sampler config, permitsPerSecond: " + permitsPerSecond
+					+ ", burst: " + burst + ", maxKeys: " + maxKeys + ", keyFields: " + Arrays.toString(keyFields));
+		}
+		this.keyFields = GelfField.of(keyFields);
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.burstNanos = intervalNanos * burst;
+		this.maxKeys = maxKeys;
+		this.buckets = new ConcurrentHashMap<>();
+		this.overflow = new Bucket(System.nanoTime());
+		// a bucket is full again at most burstNanos after its last message, sweeping more often finds nothing new
+		this.sweepIntervalNanos = Math.max(burstNanos, SWEEP_MIN_INTERVAL);
+		this.nextSweepNanos = new AtomicLong(System.nanoTime());
+	}
+
+	// Returns false if req should be dropped. If it passes after others with its key were dropped, its
+	// _sample_rate is set
+	public boolean sample(GelfRequest req) {
+		return sample(req, System.nanoTime());
+	}
+
+	boolean sample(GelfRequest req, long now) {
+		Bucket b = getBucket(getKey(req), now);
+		if (!b.tryAcquire(now, intervalNanos, burstNanos)) {
+			b.numDropped.incrementAndGet();
+			return false;
+		}
+		int dropped = b.numDropped.getAndSet(0);
+		if (dropped > 0) {
+			req.addAdditionalField(SAMPLE_RATE_FIELD, 1.0 / (dropped + 1));
+		}
+		return true;
+	}
+
+	public int getNumKeys() {
+		return buckets.size();
+	}
+
+	private Object getKey(GelfRequest req) {
+		if (keyFields.length == 1) {
+			return nullToEmpty(keyFields[0].getValue(req));
+		}
+		Object[] values = new Object[keyFields.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = keyFields[i].getValue(req);
+		}
+		return new Key(values);
+	}
+
+	private static Object nullToEmpty(Object value) {
+		return value == null ? "" : value;
+	}
+
+	private Bucket getBucket(Object key, long now) {
+		Bucket b = buckets.get(key);
+		if (b != null) {
+			return b;
+		}
+		if (buckets.size() >= maxKeys) {
+			removeIdle(now);
+			if (buckets.size() >= maxKeys) {
+				return overflow;
+			}
+		}
+		b = buckets.putIfAbsent(key, new Bucket(now));
+		return b == null ? buckets.get(key) : b;
+	}
+
+	// Removes buckets that are full again, they behave the same as a new one. Only one thread per sweep
+	// interval does it, the others go on without scanning
+	private void removeIdle(long now) {
+		long next = nextSweepNanos.get();
+		if (now - next < 0 || !nextSweepNanos.compareAndSet(next, now + sweepIntervalNanos)) {
+			return;
+		}
+		Iterator<Bucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			Bucket b = it.next();
+			if (b.isFull(now) && b.numDropped.get() == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	private static class Bucket {
+		// when the bucket is full again, it has a token if this is less than burst ahead of now
+		private final AtomicLong fullAt;
+		private final AtomicInteger numDropped;
+
+		private Bucket(long now) {
+			this.fullAt = new AtomicLong(now);
+			this.numDropped = new AtomicInteger();
+		}
+
+		private boolean tryAcquire(long now, long intervalNanos, long burstNanos) {
+			while (true) {
+				long t = fullAt.get();
+				long next = Math.max(t, now) + intervalNanos;
+				if (next - now > burstNanos) {
+					return false;
+				}
+				if (fullAt.compareAndSet(t, next)) {
+					return true;
+				}
+			}
+		}
+
+		private boolean isFull(long now) {
+			return fullAt.get() - now <= 0;
+		}
+	}
+
+	// The values of several key fields
+	private static class Key {
+		private final Object[] values;
+		private final int hash;
+
+		private Key(Object[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(values, ((Key) o).values);
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Sends GELF messages to a Graylog GELF TCP input over one long lived connection.
+ *
+ * Every message is framed by a trailing null byte. The GelfBuffer already has a separator byte after
+ * each message, so with null separators the whole batch is written as it is, with a single write in
+ * the common case instead of a request each. This is one ByteBuffer.wrap of the contiguous buffer, not
+ * the gathering write of one ByteBuffer per message (plus its delimiter) that was asked for: the
+ * messages are already next to each other, so a gathering write would only add the ByteBuffer[] to
+ * build on every send.
+ *
+ * Before each write the connection is checked for a close by Graylog, see isClosedByPeer.
+ * If a write fails, the connection is closed and the exception is thrown so GelfManager can retry
+ * the batch as usual; the next send connects again. A write that fails before any byte went out on
+ * a reused connection (eg. closed by Graylog while idle) is retried once on a fresh connection.
+ */
+public class GelfTcpClient implements IGelfTransport {
+
+	private static final int CONNECT_TIMEOUT = 10_000; // 10 seconds
+	private static final byte FRAME_DELIMITER = 0;
+
+	private final InetSocketAddress address;
+	private GelfMetrics metrics;
+	private SocketChannel channel;
+	private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+	public GelfTcpClient(String host, int port) {
+		this.address = new InetSocketAddress(host, port);
+	}
+
+	public synchronized void send(GelfBuffer gelfMessages) throws IOException {
+		if (gelfMessages.isEmpty()) {
+			return;
+		}
+		gelfMessages.setSeparator(FRAME_DELIMITER);
+		ByteBuffer data = ByteBuffer.wrap(gelfMessages.getArray(), 0, gelfMessages.getSize());
+		if (channel == null || !write(data, true)) {
+			write(data, false);
+		}
+		if (metrics != null) {
+			long numBytes = gelfMessages.getSize();
+			metrics.addBytes(numBytes, numBytes);
+		}
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public synchronized void close() {
+		closeChannel();
+	}
+
+	// Returns false if the write failed before anything was written and canResend is set
+	private boolean write(ByteBuffer data, boolean canResend) throws IOException {
+		long written = 0;
+		try {
+			SocketChannel ch = getChannel();
+			while (data.hasRemaining()) {
+				written += ch.write(data);
+			}
+			return true;
+		} catch (IOException e) {
+			closeChannel();
+			if (!canResend || written > 0) {
+				throw e;
+			}
+			data.rewind();
+			return false;
+		}
+	}
+
+	private SocketChannel getChannel() throws IOException {
+		if (channel != null && isClosedByPeer()) {
+			closeChannel();
+		}
+		if (channel == null) {
+			SocketChannel ch = SocketChannel.open();
+			try {
+				ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				ch.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				ch.socket().connect(address, CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				ch.close();
+				throw e;
+			}
+			channel = ch;
+		}
+		return channel;
+	}
+
+	// Graylog never writes on a GELF TCP connection, so a readable channel means it was closed. Without
+	// this check the first write after Graylog closes an idle connection is silently lost.
+	// If the peer did send data, the read consumed a byte of it, so the connection is not in a known
+	// state anymore and is closed as well. The probe switches the channel to non-blocking and back on
+	// every send, two fcntl calls next to the write, which is cheap next to losing a batch
+	private boolean isClosedByPeer() {
+		try {
+			channel.configureBlocking(false);
+			probe.clear();
+			int n = channel.read(probe);
+			channel.configureBlocking(true);
+			return n != 0;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private void closeChannel() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing to do, a new connection is opened on the next send
+		}
+		channel = null;
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Sends GELF messages over UDP, following the chunking spec at
+ * https://go2docs.graylog.org/current/getting_in_log_data/gelf.html
+ *
+ * Messages (compressed, if enabled) that fit in one datagram are sent as is. Larger ones are split in
+ * chunks of CHUNK_SIZE bytes, each carrying the magic bytes, an 8 byte message id, a sequence number
+ * and the chunk count. Graylog rejects messages with more than MAX_CHUNKS chunks, those are not sent.
+ *
+ * A batch is sent message by message, and a message that fails (eg. ICMP port unreachable) does not stop
+ * the others. Unless all of them failed, send reports the messages that were too large or failed with a
+ * GelfPartialSendException, so that only those are retried or dropped.
+ *
+ * UDP is fire and forget: a successful send only means the datagrams left this host.
+ *
+ * A single DatagramChannel and chunk buffer are reused for all sends.
+ */
+public class GelfUdpClient implements IGelfTransport {
+
+	private static final int CHUNK_SIZE = 8192;
+	private static final int CHUNK_HEADER_SIZE = 12;
+	private static final int MAX_CHUNKS = 128;
+	private static final byte CHUNK_MAGIC_1 = 0x1e;
+	private static final byte CHUNK_MAGIC_2 = 0x0f;
+
+	private final InetSocketAddress address;
+	private GelfMetrics metrics;
+	private final GelfCompressor compressor;
+	private final ByteBuffer chunk;
+	private DatagramChannel channel;
+
+	public GelfUdpClient(String host, int port) {
+		this(host, port, GelfCompression.GZIP);
+	}
+
+	public GelfUdpClient(String host, int port, GelfCompression compression) {
+		this.address = new InetSocketAddress(host, port);
+		this.compressor = compression == GelfCompression.NONE ? null : new GelfCompressor(compression);
+		this.chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+	}
+
+	// Every message goes out in its own datagram(s), straight from the buffer
+	public synchronized void send(GelfBuffer gelfMessages) throws IOException {
+		int n = gelfMessages.getNumMessages();
+		int[] tooLarge = new int[0];
+		int[] failed = new int[0];
+		int numTooLarge = 0;
+		int numFailed = 0;
+		int maxLength = 0;
+		IOException error = null;
+		for (int i = 0; i < n; i++) {
+			try {
+				int length = send(gelfMessages.getArray(), gelfMessages.getOffset(i), gelfMessages.getLength(i));
+				if (length == 0) {
+					continue;
+				}
+				if (numTooLarge == tooLarge.length) {
+					tooLarge = Arrays.copyOf(tooLarge, n);
+				}
+				tooLarge[numTooLarge++] = i;
+				maxLength = Math.max(maxLength, length);
+			} catch (IOException e) {
+				// the next message gets a fresh channel
+				if (error == null) {
+					error = e;
+				}
+				if (numFailed == failed.length) {
+					failed = Arrays.copyOf(failed, n);
+				}
+				failed[numFailed++] = i;
+			}
+		}
+		if (numFailed > 0 && numFailed == n) {
+			// nothing went out, a plain failure of the batch
+			throw error;
+		}
+		if (numTooLarge > 0 || numFailed > 0) {
+			throw new GelfPartialSendException("GELF messages not sent over UDP, too large: " + numTooLarge
+					+ " (largest bytes: " + maxLength + ", max chunks: " + MAX_CHUNKS + "), failed: " + numFailed,
+					Arrays.copyOf(tooLarge, numTooLarge), Arrays.copyOf(failed, numFailed), error);
+		}
+	}
+
+	public void setMetrics(GelfMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public synchronized void close() {
+		closeChannel();
+		if (compressor != null) {
+			compressor.close();
+		}
+	}
+
+	// Returns 0, or the length if the message is too large to send
+	private int send(byte[] data, int offset, int length) throws IOException {
+		int rawLength = length;
+		if (compressor != null) {
+			length = compressor.compress(data, offset, length);
+			data = compressor.getBuffer();
+			offset = 0;
+		}
+		if (getNumChunks(length) > MAX_CHUNKS) {
+			return length;
+		}
+		try {
+			if (length <= CHUNK_SIZE) {
+				chunk.clear();
+				chunk.put(data, offset, length);
+				chunk.flip();
+				getChannel().write(chunk);
+			} else {
+				sendChunked(data, offset, length);
+			}
+			if (metrics != null) {
+				metrics.addBytes(rawLength, length);
+			}
+		} catch (IOException e) {
+			// the channel may be unusable (eg. ICMP port unreachable), open a fresh one next time
+			closeChannel();
+			throw e;
+		}
+		return 0;
+	}
+
+	private static int getNumChunks(int length) {
+		int chunkDataSize = CHUNK_SIZE - CHUNK_HEADER_SIZE;
+		return length <= CHUNK_SIZE ? 1 : (length + chunkDataSize - 1) / chunkDataSize;
+	}
+
+	private void sendChunked(byte[] data, int offset, int length) throws IOException {
+		int chunkDataSize = CHUNK_SIZE - CHUNK_HEADER_SIZE;
+		int numChunks = getNumChunks(length);
+		long messageId = ThreadLocalRandom.current().nextLong();
+		DatagramChannel ch = getChannel();
+		for (int i = 0; i < numChunks; i++) {
+			int chunkOffset = i * chunkDataSize;
+			chunk.clear();
+			chunk.put(CHUNK_MAGIC_1).put(CHUNK_MAGIC_2);
+			chunk.putLong(messageId);
+			chunk.put((byte) i).put((byte) numChunks);
+			chunk.put(data, offset + chunkOffset, Math.min(chunkDataSize, length - chunkOffset));
+			chunk.flip();
+			ch.write(chunk);
+		}
+	}
+
+	private DatagramChannel getChannel() throws IOException {
+		if (channel == null) {
+			DatagramChannel ch = DatagramChannel.open();
+			ch.connect(address);
+			channel = ch;
+		}
+		return channel;
+	}
+
+	private void closeChannel() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing to do, a new channel is opened on the next send
+		}
+		channel = null;
+	}
+
+}
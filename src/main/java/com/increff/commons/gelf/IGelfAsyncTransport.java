@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+
+/**
+ * A transport that keeps several sends in flight, so that one sender thread is not idle for every
+ * round trip. {@link GelfManager} uses sendAsync instead of send for these transports.
+ *
+ * sendAsync takes over the {@link GelfBuffer} until the callback is called, so the caller must not
+ * reuse it before that. While the transport already has its maximum number of sends in flight it waits
+ * up to timeoutMs for one to complete, and returns false without sending if none did. The caller then
+ * still owns the buffer and tries again later, which slows the sender down to what the server can take.
+ */
+public interface IGelfAsyncTransport extends IGelfTransport {
+
+	public boolean sendAsync(GelfBuffer gelfMessages, IGelfSendCallback callback, long timeoutMs)
+			throws IOException;
+
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+/**
+ * Completion of an {@link IGelfAsyncTransport#sendAsync} call. Called once, on a thread of the
+ * transport, so implementations should not block.
+ */
+public interface IGelfSendCallback {
+
+	// The server answered, with any HTTP status
+	public void completed(int status);
+
+	// The messages could not be sent, eg. connection refused or timed out
+	public void failed(Exception e);
+
+}
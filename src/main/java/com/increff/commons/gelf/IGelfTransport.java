@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+
+/**
+ * A way of delivering encoded GELF messages to Graylog, eg. HTTP ({@link GelfClient}) or UDP
+ * ({@link GelfUdpClient}). {@link GelfManager} calls send from its sender threads and treats any
+ * exception as a failed delivery of all messages in the buffer.
+ *
+ * Transports send straight from the bytes of the {@link GelfBuffer}. They may change its separator, but
+ * must not keep a reference to it after send returns, as it is reused for the next batch.
+ */
+public interface IGelfTransport {
+
+	public void send(GelfBuffer gelfMessages) throws IOException;
+
+	public void close();
+
+	// Transports record the bytes they send here
+	public void setMetrics(GelfMetrics metrics);
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.metrics;
+
+/*
+ * What a manager's shutdown(timeoutMs) did with the messages it still had: sent, spilled to disk, or
+ * dropped (including messages added during the shutdown), and how many were still being sent when the
+ * deadline passed. Their outcome is not known, the server may or may not have them.
+ */
+public class DrainReport {
+
+	private final long numFlushed;
+	private final long numSpilled;
+	private final long numDropped;
+	private final long numUnfinished;
+	private final long elapsedMs;
+	private final boolean timedOut;
+
+	public DrainReport(long numFlushed, long numSpilled, long numDropped, long numUnfinished, long elapsedMs,
+			boolean timedOut) {
+		this.numFlushed = numFlushed;
+		this.numSpilled = numSpilled;
+		this.numDropped = numDropped;
+		this.numUnfinished = numUnfinished;
+		this.elapsedMs = elapsedMs;
+		this.timedOut = timedOut;
+	}
+
+	public long getNumFlushed() {
+		return numFlushed;
+	}
+
+	public long getNumSpilled() {
+		return numSpilled;
+	}
+
+	public long getNumDropped() {
+		return numDropped;
+	}
+
+	public long getNumUnfinished() {
+		return numUnfinished;
+	}
+
+	public long getElapsedMs() {
+		return elapsedMs;
+	}
+
+	// true if the deadline passed before everything was sent
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	@Override
+	public String toString() {
+		return "DrainReport{flushed=" + numFlushed + " spilled=" + numSpilled + " dropped=" + numDropped
+				+ " unfinished=" + numUnfinished + " elapsedMs=" + elapsedMs + " timedOut=" + timedOut + "}";
+	}
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.metrics;
+
+// Why a message was dropped, see GelfMetrics.getNumDropped(DropReason) and ESMetrics
+public enum DropReason {
+	// evicted from a full queue (and not spilled)
+	QUEUE_FULL,
+	// a field over the size limit
+	TOO_LARGE,
+	// could not be encoded
+	ENCODING_FAILED,
+	// refused by the server with a status that is not worth retrying, eg. 400
+	REJECTED,
+	// still failing after all attempts
+	RETRIES_EXHAUSTED,
+	// failed in a way that is not retried, eg. an async ES index call that got no response
+	SEND_FAILED,
+	// still queued when the manager stopped
+	SHUTDOWN,
+	// left out on purpose by a GelfSampler
+	SAMPLED;
+}
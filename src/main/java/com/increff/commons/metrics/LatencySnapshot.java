@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * An immutable copy of a LatencyHistogram. Values are in nanoseconds, percentiles are the upper bound
+ * of the bucket they fall in, but never more than the max.
+ */
+public class LatencySnapshot {
+
+	private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	LatencySnapshot(long[] counts, long sum, long max) {
+		long n = 0;
+		for (long c : counts) {
+			n += c;
+		}
+		this.counts = counts;
+		this.count = n;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	// eg. 99.9 for p999, 0 if nothing was recorded
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(LatencyHistogram.bucketMax(i), max);
+			}
+		}
+		return max;
+	}
+
+	public long getP50() {
+		return getPercentile(50);
+	}
+
+	public long getP99() {
+		return getPercentile(99);
+	}
+
+	public long getP999() {
+		return getPercentile(99.9);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%dus p50=%dus p99=%dus p999=%dus max=%dus", count, micros(getMean()),
+				micros(getP50()), micros(getP99()), micros(getP999()), micros(max));
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+}
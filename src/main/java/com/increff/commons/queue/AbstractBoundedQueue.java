@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/*
+ * The queue used by the managers to hand requests from application threads to the sender thread
+ * without any lock. Subclasses decide where elements are kept and in which order they leave, this class
+ * does the bound, the eviction and the waiting.
+ *
+ * offer never blocks and never fails: if the queue is full, an element is evicted (see removeEvictable)
+ * and returned, so that the caller can drop it. headroom slots are kept free for offerFirst, so that
+ * requeuing a failed request is not immediately evicted by new ones.
+ *
+ * The size is tracked separately from the storage, so under heavy contention it can be off by the number
+ * of concurrent producers for a moment. This only makes the bound slightly soft, it never loses elements.
+ *
+ * Optionally (see setMaxBytes) the total weight of the elements, eg. their size in bytes, is bounded too,
+ * and elements are evicted on whichever limit is hit first. One large element can then take the place of
+ * several small ones, so callers take the first evicted element from offer and the rest from evict. An
+ * element heavier than the whole budget is not added at all, offer returns it as evicted.
+ *
+ * Consumers can block in poll(timeout) / await instead of sleeping between polls. A blocked consumer
+ * registers itself in waiters before checking for elements one last time, and producers take the lock to
+ * signal only if waiters is non zero. So while the sender keeps up, offer stays lock free, and an idle
+ * sender is woken up as soon as something is added, instead of at its next poll.
+ *
+ * Consumers that must not block (see ScheduledRunner) register a listener with awaitAsync instead, which
+ * the next offer calls on its own thread. Listeners count as waiters, so the fast path is the same.
+ */
+public abstract class AbstractBoundedQueue<T> {
+
+	private final AtomicInteger size;
+	private final int capacity;
+	private final int headroom;
+	private final AtomicLong bytes;
+	// null unless setMaxBytes was called
+	private ToLongFunction<? super T> weigher;
+	private long maxBytes;
+	private long headroomBytes;
+	private final AtomicInteger waiters;
+	private final ConcurrentLinkedQueue<Runnable> listeners;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+
+	protected AbstractBoundedQueue(int capacity, int headroom) {
+		if (capacity <= headroom) {
+			throw new IllegalArgumentException("Capacity: " + capacity + " must be more than headroom: " + headroom);
+		}
+		this.size = new AtomicInteger();
+		this.capacity = capacity;
+		this.headroom = headroom;
+		this.bytes = new AtomicLong();
+		this.waiters = new AtomicInteger();
+		this.listeners = new ConcurrentLinkedQueue<>();
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+	}
+
+	// Adds at the tail of e's place in the queue
+	protected abstract void addLast(T e);
+
+	// Adds at the head of e's place in the queue
+	protected abstract void addFirst(T e);
+
+	// Removes the next element to send, or returns null
+	protected abstract T removeFirst();
+
+	// Removes the element to drop when full, or returns null
+	protected abstract T removeEvictable();
+
+	public abstract boolean isEmpty();
+
+	// Must be called before the queue is used. weigher must return the same weight for an element every
+	// time, eg. a size computed when it was queued. The headroom is kept in the same share of maxBytes
+	public void setMaxBytes(long maxBytes, ToLongFunction<? super T> weigher) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		this.headroomBytes = maxBytes * headroom / capacity;
+		this.weigher = weigher;
+	}
+
+	// Adds e and returns an element removed to make space for it, or null. If that is not null, more
+	// may have to go, see evict
+	public T offer(T e) {
+		long weight = weigh(e);
+		if (weight > maxBytes - headroomBytes) {
+			return e;
+		}
+		addLast(e);
+		signalWaiter();
+		size.incrementAndGet();
+		addBytes(weight);
+		return evict();
+	}
+
+	// Removes and returns an element if the queue is over its count or byte limit, otherwise returns null
+	public T evict() {
+		if (size.get() <= capacity - headroom && (weigher == null || bytes.get() <= maxBytes - headroomBytes)) {
+			return null;
+		}
+		T evicted = removeEvictable();
+		if (evicted != null) {
+			size.decrementAndGet();
+			addBytes(-weigh(evicted));
+		}
+		return evicted;
+	}
+
+	// Adds to the head if there is space, this can use the headroom
+	public boolean offerFirst(T e) {
+		long weight = weigh(e);
+		if (weigher != null && bytes.get() + weight > maxBytes) {
+			return false;
+		}
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		addBytes(weight);
+		addFirst(e);
+		signalWaiter();
+		return true;
+	}
+
+	// Removes the next element, returns null if empty
+	public T poll() {
+		T e = removeFirst();
+		if (e != null) {
+			size.decrementAndGet();
+			addBytes(-weigh(e));
+		}
+		return e;
+	}
+
+	private long weigh(T e) {
+		return weigher == null ? 0 : weigher.applyAsLong(e);
+	}
+
+	// without a byte limit the counter is not touched, it would be one more contended atomic per offer
+	private void addBytes(long weight) {
+		if (weigher != null) {
+			bytes.addAndGet(weight);
+		}
+	}
+
+	// Removes the next element, waiting up to timeout for one. Returns null if still empty
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		while (true) {
+			T e = poll();
+			if (e != null || nanos <= 0) {
+				return e;
+			}
+			await(nanos, TimeUnit.NANOSECONDS);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	// Waits up to timeout until the queue is not empty, returns false if it is still empty
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		if (!isEmpty()) {
+			return true;
+		}
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			waiters.incrementAndGet();
+			try {
+				// an offer before the increment is seen here, any later one will signal
+				while (isEmpty() && nanos > 0) {
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+			} finally {
+				waiters.decrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return !isEmpty();
+	}
+
+	// Has listener called once by the next offer, on the offering thread, and returns true. If the queue is
+	// not empty, returns false instead and listener is not called. listener must be quick and not block
+	public boolean awaitAsync(Runnable listener) {
+		if (!isEmpty()) {
+			return false;
+		}
+		listeners.add(listener);
+		waiters.incrementAndGet();
+		// an offer before the increment is seen here, any later one will call the listener. If it cannot
+		// be removed anymore, an offer already took it and calls it
+		if (isEmpty() || !listeners.remove(listener)) {
+			return true;
+		}
+		waiters.decrementAndGet();
+		return false;
+	}
+
+	private void signalWaiter() {
+		if (waiters.get() == 0) {
+			return;
+		}
+		Runnable listener = listeners.poll();
+		if (listener != null) {
+			waiters.decrementAndGet();
+			listener.run();
+			return;
+		}
+		lock.lock();
+		try {
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		// can be briefly negative while an offer is between adding and counting
+		return Math.max(0, size.get());
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	// Total weight of the elements, 0 unless setMaxBytes was called
+	public long getBytes() {
+		return Math.max(0, bytes.get());
+	}
+
+	// 0 for no byte limit
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/*
+ * A FIFO AbstractBoundedQueue on a ConcurrentLinkedDeque. Application threads only pay for a CAS on the
+ * tail of the deque and an atomic increment. When full, the oldest element is evicted.
+ */
+public class BoundedQueue<T> extends AbstractBoundedQueue<T> {
+
+	private final ConcurrentLinkedDeque<T> q;
+
+	public BoundedQueue(int capacity, int headroom) {
+		super(capacity, headroom);
+		this.q = new ConcurrentLinkedDeque<>();
+	}
+
+	@Override
+	protected void addLast(T e) {
+		q.offerLast(e);
+	}
+
+	@Override
+	protected void addFirst(T e) {
+		q.offerFirst(e);
+	}
+
+	@Override
+	protected T removeFirst() {
+		return q.pollFirst();
+	}
+
+	@Override
+	protected T removeEvictable() {
+		return q.pollFirst();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return q.isEmpty();
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+/**
+ * A sender that takes requests from an {@link AbstractBoundedQueue}, split into steps that do not block
+ * on the queue, so that it can run on its own thread or as short tasks on a shared scheduler (see
+ * {@link ScheduledRunner}).
+ */
+public interface IQueueWorker {
+
+	// returned by step when there was nothing to send
+	public static final long IDLE = -1;
+
+	// Sends what is ready, and returns the milliseconds to wait before the next step, 0 to go on right
+	// away, or IDLE to wait until a request is added
+	public long step();
+
+	// The longest wait when IDLE, eg. to close windows or retry on time even if nothing is added
+	public long getIdleWaitMs();
+
+	public boolean isRunning();
+
+	// Called once after the last step, when isRunning is false
+	public void close();
+
+}
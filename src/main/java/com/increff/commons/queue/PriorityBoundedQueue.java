@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.ToIntFunction;
+
+/*
+ * An AbstractBoundedQueue that keeps one deque per priority, 0 being the highest. poll returns the oldest
+ * element of the highest priority, and when full the oldest element of the lowest priority is evicted,
+ * so a burst of low priority elements can only push out each other.
+ *
+ * The capacity is shared by all priorities. Polling and evicting look at the deques in order, which is
+ * cheap for the handful of priorities of a log level.
+ */
+public class PriorityBoundedQueue<T> extends AbstractBoundedQueue<T> {
+
+	private final ConcurrentLinkedDeque<T>[] queues;
+	private final ToIntFunction<? super T> priority;
+
+	// priority must return 0 to numPriorities - 1 for every element, values out of range are clamped
+	@SuppressWarnings("unchecked")
+	public PriorityBoundedQueue(int capacity, int headroom, int numPriorities, ToIntFunction<? super T> priority) {
+		super(capacity, headroom);
+		if (numPriorities < 1) {
+			throw new IllegalArgumentException("Need at least one priority, numPriorities: " + numPriorities);
+		}
+		this.queues = (ConcurrentLinkedDeque<T>[]) new ConcurrentLinkedDeque<?>[numPriorities];
+		for (int i = 0; i < numPriorities; i++) {
+			queues[i] = new ConcurrentLinkedDeque<>();
+		}
+		this.priority = priority;
+	}
+
+	@Override
+	protected void addLast(T e) {
+		queueOf(e).offerLast(e);
+	}
+
+	@Override
+	protected void addFirst(T e) {
+		queueOf(e).offerFirst(e);
+	}
+
+	@Override
+	protected T removeFirst() {
+		for (ConcurrentLinkedDeque<T> q : queues) {
+			T e = q.pollFirst();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected T removeEvictable() {
+		for (int i = queues.length - 1; i >= 0; i--) {
+			T e = queues[i].pollFirst();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (ConcurrentLinkedDeque<T> q : queues) {
+			if (!q.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private ConcurrentLinkedDeque<T> queueOf(T e) {
+		int p = priority.applyAsInt(e);
+		return queues[Math.max(0, Math.min(queues.length - 1, p))];
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Runs an IQueueWorker as short tasks on a ScheduledExecutorService, so that many managers can share a
+ * few threads instead of keeping one each, mostly idle.
+ *
+ * Each task does one step. If there is more to send, the next step is queued behind the tasks of other
+ * workers instead of running right away, so a busy worker does not starve the others. A wait (backoff,
+ * linger) is a delayed task. When idle, nothing runs: a listener on the queue (awaitAsync) queues the
+ * next step as soon as a request is added, and a delayed task after getIdleWaitMs covers the rest.
+ *
+ * scheduled is set while a step is queued or running, so wake ups from the listener, the idle task and
+ * stop never run two steps of a worker at once.
+ */
+public class ScheduledRunner implements Runnable {
+
+	private final ScheduledExecutorService scheduler;
+	private final AbstractBoundedQueue<?> q;
+	private final IQueueWorker worker;
+	private final AtomicBoolean scheduled;
+	private final AtomicBoolean listening;
+	private final Runnable listener;
+	private ScheduledFuture<?> idleTask;
+
+	public ScheduledRunner(ScheduledExecutorService scheduler, AbstractBoundedQueue<?> q, IQueueWorker worker) {
+		this.scheduler = scheduler;
+		this.q = q;
+		this.worker = worker;
+		this.scheduled = new AtomicBoolean();
+		this.listening = new AtomicBoolean();
+		this.listener = () -> {
+			listening.set(false);
+			wake();
+		};
+	}
+
+	// Queues a step unless one is queued or running already
+	public void wake() {
+		if (!scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			scheduler.execute(this);
+		} catch (RejectedExecutionException e) {
+			// the scheduler is shut down, nothing will run this worker anymore
+			scheduled.set(false);
+		}
+	}
+
+	public void run() {
+		if (!worker.isRunning()) {
+			worker.close();
+			return;
+		}
+		long waitTimeMs;
+		try {
+			waitTimeMs = worker.step();
+		} catch (RuntimeException e) {
+			// the worker handles send failures itself, try again later rather than stopping for good
+			waitTimeMs = worker.getIdleWaitMs();
+		}
+		try {
+			if (waitTimeMs == 0) {
+				scheduler.execute(this);
+			} else if (waitTimeMs > 0) {
+				scheduler.schedule(this, waitTimeMs, TimeUnit.MILLISECONDS);
+			} else {
+				idle();
+			}
+		} catch (RejectedExecutionException e) {
+			scheduled.set(false);
+		}
+	}
+
+	private void idle() {
+		synchronized (this) {
+			if (idleTask != null) {
+				idleTask.cancel(false);
+			}
+			idleTask = scheduler.schedule(this::wake, worker.getIdleWaitMs(), TimeUnit.MILLISECONDS);
+		}
+		scheduled.set(false);
+		// at most one listener at a time, an earlier one may still be waiting
+		if (listening.compareAndSet(false, true) && !q.awaitAsync(listener)) {
+			listening.set(false);
+			wake();
+		}
+	}
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * A FIFO queue of byte arrays kept in memory mapped segment files, used as an overflow tier when the
+ * in memory queue of a manager is full or its server is down.
+ *
+ * Segments are named spill-<seq>.seg and are always used in sequence, so the live segments are exactly
+ * readSeq..writeSeq. A record is a 4 byte length followed by the payload. After every record a 0 length
+ * is written, so a reader stops there even when the segment is a recycled file with old data after it.
+ * The payload and the 0 after it are written before the length, so a record only becomes visible once
+ * it is complete.
+ *
+ * The read position is kept in a small mapped meta file and is updated on every remove. Its segment and
+ * offset are one 8 byte value written with a single aligned store, so a crash cannot leave one updated
+ * without the other. On open it is only trusted if it points at a record boundary of a live segment,
+ * otherwise that segment is read again from the start. The write position is found again on open by
+ * walking the records of the last segment. As everything is written through mapped buffers, the queue
+ * survives a crash of the process (not of the machine, unless close() or force() is called).
+ *
+ * A record length that cannot be right (negative, or past the end of the segment) is taken as the end
+ * of the segment, so a corrupt segment loses the records after it instead of failing every read.
+ *
+ * Disk usage is bounded by maxBytes. When a segment has been fully read its file is kept for reuse by a
+ * later segment instead of being deleted and created again.
+ *
+ * This is a slow path, so all methods are synchronized.
+ */
+public class SpillQueue {
+
+	private static final String SEGMENT_PREFIX = "spill-";
+	private static final String FREE_PREFIX = "free-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String META_FILE = "spill.meta";
+	private static final int LENGTH_SIZE = 4;
+
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final Deque<File> freeFiles;
+	private final MappedByteBuffer meta;
+
+	private long readSeq;
+	private int readPos;
+	private MappedByteBuffer readBuf;
+	private long writeSeq;
+	private int writePos;
+	private MappedByteBuffer writeBuf;
+
+	public SpillQueue(File dir, int segmentSize, long maxBytes) throws IOException {
+		if (segmentSize < 1024 || maxBytes < 2L * segmentSize) {
+			throw new IllegalArgumentException("Need at least two segments of at least 1KB, segmentSize: "
+					+ segmentSize + ", maxBytes: " + maxBytes);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create spill directory " + dir);
+		}
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentSize);
+		this.freeFiles = new ArrayDeque<>();
+		this.meta = map(new File(dir, META_FILE), 8);
+		open();
+	}
+
+	// Returns false if the record does not fit in the disk budget
+	public synchronized boolean offer(byte[] data, int off, int len) throws IOException {
+		if (LENGTH_SIZE + len + LENGTH_SIZE > segmentSize) {
+			return false;
+		}
+		if (writePos + LENGTH_SIZE + len > segmentSize) {
+			if (writeSeq - readSeq + 1 >= maxSegments) {
+				return false;
+			}
+			writeBuf = newSegment(writeSeq + 1);
+			writeSeq++;
+			writePos = 0;
+		}
+		int end = writePos + LENGTH_SIZE + len;
+		writeBuf.position(writePos + LENGTH_SIZE);
+		writeBuf.put(data, off, len);
+		if (end + LENGTH_SIZE <= segmentSize) {
+			writeBuf.putInt(end, 0);
+		}
+		writeBuf.putInt(writePos, len);
+		writePos = end;
+		return true;
+	}
+
+	// Returns records from the head without removing them, stopping at maxCount records or once maxBytes is reached
+	public synchronized List<byte[]> peek(int maxCount, long maxBytes) throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		long seq = readSeq;
+		int pos = readPos;
+		ByteBuffer buf = readBuf.duplicate();
+		long bytes = 0;
+		while (records.size() < maxCount && bytes < maxBytes) {
+			if (seq == writeSeq && pos == writePos) {
+				break;
+			}
+			int len = getLength(buf, pos);
+			if (len == 0) {
+				if (seq == writeSeq) {
+					// corrupt, the records of the last segment end at writePos
+					pos = writePos;
+					continue;
+				}
+				seq++;
+				pos = 0;
+				buf = seq == writeSeq ? writeBuf.duplicate() : mapSegment(seq);
+				continue;
+			}
+			byte[] record = new byte[len];
+			buf.position(pos + LENGTH_SIZE);
+			buf.get(record);
+			records.add(record);
+			bytes += len;
+			pos += LENGTH_SIZE + len;
+		}
+		return records;
+	}
+
+	// Removes count records from the head, usually after the records returned by peek were delivered
+	public synchronized void remove(int count) throws IOException {
+		while (count > 0 && !isEmpty()) {
+			int len = getLength(readBuf, readPos);
+			if (len == 0) {
+				if (readSeq == writeSeq) {
+					readPos = writePos;
+					continue;
+				}
+				recycle(readSeq);
+				readSeq++;
+				readPos = 0;
+				readBuf = readSeq == writeSeq ? writeBuf : mapSegment(readSeq);
+				continue;
+			}
+			readPos += LENGTH_SIZE + len;
+			count--;
+		}
+		// one aligned 8 byte store, segments would have to be numbered past 2^32 for this to wrap
+		meta.putLong(0, readSeq << 32 | readPos);
+	}
+
+	// Length of the record at pos, 0 at the end of the segment or if the length is corrupt
+	private int getLength(ByteBuffer buf, int pos) {
+		if (pos < 0 || pos + LENGTH_SIZE > segmentSize) {
+			return 0;
+		}
+		int len = buf.getInt(pos);
+		return len > 0 && pos + LENGTH_SIZE + len <= segmentSize ? len : 0;
+	}
+
+	public synchronized boolean isEmpty() {
+		return readSeq == writeSeq && readPos == writePos;
+	}
+
+	// Bytes of disk in use by segments that still have unread records
+	public synchronized long getUsedBytes() {
+		return (writeSeq - readSeq) * segmentSize + writePos - readPos;
+	}
+
+	// Flushes all mapped buffers to disk
+	public synchronized void force() {
+		writeBuf.force();
+		meta.force();
+	}
+
+	public synchronized void close() {
+		force();
+	}
+
+	private void open() throws IOException {
+		long minSeq = Long.MAX_VALUE, maxSeq = -1;
+		File[] files = dir.listFiles();
+		for (File f : files == null ? new File[0] : files) {
+			String name = f.getName();
+			if (name.startsWith(FREE_PREFIX)) {
+				freeFiles.add(f);
+			} else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				minSeq = Math.min(minSeq, seq);
+				maxSeq = Math.max(maxSeq, seq);
+			}
+		}
+		if (maxSeq < 0) {
+			writeSeq = readSeq = 0;
+			writePos = readPos = 0;
+			writeBuf = readBuf = newSegment(0);
+			remove(0);
+			return;
+		}
+
+		long readOffsets = meta.getLong(0);
+		readSeq = readOffsets >>> 32;
+		readPos = (int) readOffsets;
+		if (readSeq < minSeq || readSeq > maxSeq) {
+			// meta file is new or lost, read everything there is
+			readSeq = minSeq;
+			readPos = 0;
+		}
+		// segments before the read position have been fully read
+		for (long seq = minSeq; seq < readSeq; seq++) {
+			recycle(seq);
+		}
+
+		writeSeq = maxSeq;
+		writeBuf = mapSegment(writeSeq);
+		writePos = 0;
+		while (writePos + LENGTH_SIZE <= segmentSize) {
+			int len = writeBuf.getInt(writePos);
+			if (len <= 0 || writePos + LENGTH_SIZE + len > segmentSize) {
+				break;
+			}
+			writePos += LENGTH_SIZE + len;
+		}
+		readBuf = readSeq == writeSeq ? writeBuf : mapSegment(readSeq);
+		if (!isRecordStart(readBuf, readPos, readSeq == writeSeq ? writePos : segmentSize)) {
+			// would start reading in the middle of a record, better to send some records twice
+			readPos = 0;
+		}
+	}
+
+	// Whether pos is the start of a record, or the end of the records, in buf
+	private boolean isRecordStart(ByteBuffer buf, int pos, int end) {
+		if (pos < 0 || pos > end) {
+			return false;
+		}
+		int p = 0;
+		while (p < pos) {
+			int len = getLength(buf, p);
+			if (len == 0) {
+				return false;
+			}
+			p += LENGTH_SIZE + len;
+		}
+		return p == pos;
+	}
+
+	private MappedByteBuffer newSegment(long seq) throws IOException {
+		File f = segmentFile(seq);
+		File free = freeFiles.poll();
+		if (free != null && !free.renameTo(f)) {
+			throw new IOException("Unable to reuse spill segment " + free);
+		}
+		MappedByteBuffer buf = mapSegment(seq);
+		buf.putInt(0, 0);
+		return buf;
+	}
+
+	private void recycle(long seq) {
+		File f = segmentFile(seq);
+		File free = new File(dir, FREE_PREFIX + seq + SEGMENT_SUFFIX);
+		if (f.renameTo(free)) {
+			freeFiles.add(free);
+		} else {
+			f.delete();
+		}
+	}
+
+	private MappedByteBuffer mapSegment(long seq) throws IOException {
+		return map(segmentFile(seq), segmentSize);
+	}
+
+	private File segmentFile(long seq) {
+		return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+	}
+
+	private static MappedByteBuffer map(File f, int size) throws IOException {
+		// the mapping stays valid after the file is closed
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+}
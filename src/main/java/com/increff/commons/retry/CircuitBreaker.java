@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.retry;
+
+/*
+ * Stops all senders of a manager from hammering a server that is down.
+ *
+ * CLOSED: requests go through. After failureThreshold failures in a row, the breaker opens.
+ * OPEN: no requests go through until the open period is over. The open period grows with every
+ * consecutive opening, from the retry policy's base delay up to its maximum, with jitter.
+ * HALF_OPEN: one probe request goes through. If it succeeds the breaker closes, if it fails it opens
+ * again. Other senders wait for the probe's result.
+ *
+ * Senders call tryAcquire before sending and then exactly one of onSuccess, onFailure or release.
+ */
+public class CircuitBreaker {
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static int PROBE_WAIT_TIME = 10; // 10 milliseconds
+
+	private final int failureThreshold;
+	private final RetryPolicy openPolicy;
+	private State state;
+	private int consecutiveFailures;
+	private int consecutiveOpenings;
+	private long openUntil;
+	private boolean probeInFlight;
+
+	public CircuitBreaker(int failureThreshold, RetryPolicy openPolicy) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+		}
+		this.failureThreshold = failureThreshold;
+		this.openPolicy = openPolicy;
+		this.state = State.CLOSED;
+	}
+
+	// Returns 0 if a request may be sent now, or else the time to wait before asking again
+	public synchronized long tryAcquire() {
+		switch (state) {
+		case CLOSED:
+			return 0;
+		case OPEN:
+			long remainingMs = openUntil - System.currentTimeMillis();
+			if (remainingMs > 0) {
+				return remainingMs;
+			}
+			state = State.HALF_OPEN;
+			probeInFlight = true;
+			return 0;
+		default:
+			if (probeInFlight) {
+				return PROBE_WAIT_TIME;
+			}
+			probeInFlight = true;
+			return 0;
+		}
+	}
+
+	public synchronized void onSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		consecutiveOpenings = 0;
+		probeInFlight = false;
+	}
+
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			consecutiveOpenings++;
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis() + openPolicy.getDelayMs(consecutiveOpenings);
+			probeInFlight = false;
+		}
+	}
+
+	// Nothing was sent after tryAcquire, eg. because there was nothing to send
+	public synchronized void release() {
+		probeInFlight = false;
+	}
+
+	public synchronized boolean isClosed() {
+		return state == State.CLOSED;
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * How often and after how long the managers retry a failed delivery.
+ *
+ * The wait after the n-th failed attempt is d = min(maxDelayMs, baseDelayMs * 2^(n-1)), of which a random
+ * half is taken off ("equal jitter"), so that senders failing together do not retry together.
+ */
+public class RetryPolicy {
+
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final int maxAttempts;
+
+	public RetryPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts) {
+		if (baseDelayMs < 1 || maxDelayMs < baseDelayMs || maxAttempts < 1) {
+			throw new IllegalArgumentException("Invalid retry policy, baseDelayMs: " + baseDelayMs + ", maxDelayMs: "
+					+ maxDelayMs + ", maxAttempts: " + maxAttempts);
+		}
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.maxAttempts = maxAttempts;
+	}
+
+	// attempt is the number of failed attempts so far, starting at 1
+	public long getDelayMs(int attempt) {
+		int shift = Math.min(Math.max(attempt - 1, 0), 30);
+		long delay = Math.min(maxDelayMs, baseDelayMs << shift);
+		return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	public boolean canRetry(int attempts) {
+		return attempts < maxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	// Only these statuses can succeed on retry. Other 4xx mean the message itself was rejected
+	public static boolean isRetryable(int httpStatus) {
+		return httpStatus == 408 || httpStatus == 429 || httpStatus >= 500;
+	}
+
+}
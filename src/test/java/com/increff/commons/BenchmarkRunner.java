@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons;
+
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.increff.commons.queue.ManagerAddBenchmark;
+
+/*
+ * Runs the JMH benchmarks under src/test with the gc profiler, so every result also has the bytes
+ * allocated per operation (gc.alloc.rate.norm). Run with mvn -P benchmark test, or pass a regex of
+ * the benchmarks to run, eg. -Dbenchmark.include=GelfEncoder
+ *
+ * ManagerAddBenchmark is run once per thread count, the others with one thread.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : ".*";
+		try {
+			new Runner(options(include).exclude(ManagerAddBenchmark.class.getSimpleName()).build()).run();
+		} catch (NoBenchmarksException e) {
+			// only ManagerAddBenchmark matched
+		}
+
+		if (!Pattern.compile(include).matcher(ManagerAddBenchmark.class.getName()).find()) {
+			return;
+		}
+		for (int threads : ManagerAddBenchmark.THREADS) {
+			new Runner(options(ManagerAddBenchmark.class.getSimpleName()).threads(threads).build()).run();
+		}
+	}
+
+	private static ChainedOptionsBuilder options(String include) {
+		return new OptionsBuilder().include(include).addProfiler(GCProfiler.class);
+	}
+
+}
@@ -16,7 +16,8 @@ package com.increff.commons.es;
 
 import java.io.*;
 import java.time.*;
-import java.util.Properties;
+
+import com.increff.commons.stub.ESStubServer;
 
 public class Application {
 
@@ -25,24 +26,12 @@ public class Application {
     private static int MAX_ROWS = 20;
 
 
-    public static Properties loadProperties() throws IOException {
-        Properties properties = new Properties();
-        String propFileName = "test.properties";
-
-        properties.load(new FileReader(propFileName));
-
-        return properties;
-    }
-
     public static void main(String[] args) throws IOException, InterruptedException {
-        Properties properties = loadProperties();
-
-        String address = properties.getProperty("elasticsearch.url");
-        String user = properties.getProperty("elasticsearch.username");
-        String password = properties.getProperty("elasticsearch.password");
-        int port = Integer.parseInt(properties.getProperty("elasticsearch.port"));
+        // sends to a local stub, see LoadGenerator for load tests
+        ESStubServer server = new ESStubServer();
+        server.start();
 
-        ESClient client = new ESClient(address, port, user, password);
+        ESClient client = new ESClient("127.0.0.1", server.getPort(), "user", "password");
 
         for (int i = 2; i < MAX_ROWS; i++) {
             ESRequest req = ESRequest.builder()
@@ -61,11 +50,13 @@ public class Application {
             client.send(req);
         }
 
-        Thread.sleep(10000);
+        Thread.sleep(1000);
 
         ESMetrics metrics = client.getMetrics();
         System.out.println("Requests Processed: " + metrics.getNumProcessed() + "\nRequests successful: " + metrics.getNumSuccess() + "\nRequests dropped: " + metrics.getNumDropped());
 
+        System.out.println("Documents received: " + server.getNumDocuments());
         client.close();
+        server.stop();
     }
 }
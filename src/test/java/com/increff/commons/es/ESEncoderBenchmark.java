@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.es;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/*
+ * Builds the IndexRequest source of a document the way ESClient did before ESEncoder.getBytes (a String
+ * from a StringWriter, with ZoneId.of("UTC") conversions, then encoded again by IndexRequest.source)
+ * against getBytes, and times getJson on its own. Bodies are either that many bytes of small JSON
+ * objects, or one of the gelf sample files. Run main, the gc profiler reports the bytes allocated per
+ * document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ESEncoderBenchmark {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	// size of request and response body, or a sample file
+	@Param({ "100", "2000", "20000", "SampleTextFile_10kb.txt", "SampleTextFile_20kb.txt", "SampleTextFile_50kb.txt" })
+	private String body;
+
+	private ESRequest req;
+
+	@Setup
+	public void setup() throws IOException {
+		String data = body.endsWith(".txt") ? readFile(body) : newBody(Integer.parseInt(body));
+		req = ESRequest.builder().application("proxy").host("proxy-1").module("flipkart").client("1100113")
+				.requestName("get_orders").url("https://api.example.com/orders").timestamp(ZonedDateTime.now())
+				.endTimestamp(ZonedDateTime.now()).durationInMillis(120).status(ESRequestStatus.SUCCESS)
+				.requestBody(data).responseBody(data).httpHeaders("Accept: application/json")
+				.httpMethod("POST").httpStatus("200").transactionId("a8f0c1").build();
+	}
+
+	@Benchmark
+	public String getJson() throws IOException {
+		return ESEncoder.getJson(req);
+	}
+
+	@Benchmark
+	public IndexRequest stringSource() throws IOException {
+		return new IndexRequest("proxy").source(legacyJson(req), XContentType.JSON);
+	}
+
+	@Benchmark
+	public IndexRequest bytesSource() throws IOException {
+		return new IndexRequest("proxy").source(ESEncoder.getBytes(req), XContentType.JSON);
+	}
+
+	private static String newBody(int size) {
+		StringBuilder body = new StringBuilder();
+		while (body.length() < size) {
+			body.append("{\"order\":\"SO-1234\",\"qty\":2}");
+		}
+		return body.toString();
+	}
+
+	private static String readFile(String fileName) throws IOException {
+		return IOUtils.toString(ESEncoderBenchmark.class.getResourceAsStream("/com/increff/commons/gelf/" + fileName),
+				"UTF-8");
+	}
+
+	// ESEncoder.getJson before the timestamp and null changes
+	private static String legacyJson(ESRequest req) throws IOException {
+		StringWriter w = new StringWriter();
+		JsonGenerator g = jsonFactory.createGenerator(w);
+		g.writeStartObject();
+		g.writeStringField("application", req.getApplication());
+		g.writeStringField("host", req.getHost());
+		g.writeStringField("module", req.getModule());
+		g.writeStringField("url", req.getUrl());
+		g.writeStringField("client", req.getClient());
+		g.writeStringField("timestamp", req.getTimestamp().withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime().toString());
+		g.writeStringField("request_name", req.getRequestName());
+		g.writeNumberField("duration_millis", req.getDurationInMillis());
+		g.writeStringField("status", req.getStatus().name());
+		g.writeStringField("requestBody", req.getRequestBody());
+		g.writeStringField("responseBody", req.getResponseBody());
+		g.writeStringField("http_headers", req.getHttpHeaders());
+		g.writeStringField("http_status", req.getHttpStatus());
+		g.writeStringField("end_timestamp", req.getEndTimestamp().withZoneSameInstant(ZoneId.of("UTC")).toLocalDateTime().toString());
+		g.writeStringField("http_method", req.getHttpMethod());
+		g.writeStringField("response_headers", req.getResponseHeaders());
+		g.writeStringField("transactionId", req.getTransactionId());
+		g.writeStringField("remarks", req.getRemarks());
+		g.close();
+		return w.toString();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ESEncoderBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
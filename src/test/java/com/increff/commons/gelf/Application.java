@@ -14,22 +14,23 @@
 
 package com.increff.commons.gelf;
 
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Properties;
 
 import org.apache.commons.io.IOUtils;
 
+import com.increff.commons.stub.GelfStubServer;
+
 public class Application {
 
 	private static int MAX_ROWS = 1;
 
 	public static void main(String[] args) throws IOException {
-        Properties properties = loadProperties();
-        String address = properties.getProperty("gelf.url");
+		// sends to a local stub, see LoadGenerator for load tests
+		GelfStubServer server = new GelfStubServer();
+		server.start();
 
-		GelfClient client = new GelfClient(address);
+		GelfClient client = new GelfClient(server.getHttpUrl());
 		for (int i = 0; i < MAX_ROWS; i++) {
 			GelfRequest req = new GelfRequest("new message " + i);
 			req.setHost("romillaptop");
@@ -37,7 +38,8 @@ public class Application {
 			doProxy(req);
 			client.send(req);
 		}
-		System.out.println("Done!");
+		System.out.println("Done! Messages received: " + server.getNumMessages());
+		server.stop();
 	}
 
 	private static void doProxy(GelfRequest req) throws IOException {
@@ -69,13 +71,4 @@ public class Application {
 		return Application.class.getResourceAsStream(resource);
 	}
 
-    public static Properties loadProperties() throws IOException {
-        Properties properties = new Properties();
-        String propFileName = "test.properties";
-
-        properties.load(new FileReader(propFileName));
-
-        return properties;
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+
+import org.apache.commons.io.IOUtils;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Measures the bytes allocated by the sending thread per GELF message, for the sample files as
+ * full_message. "before" is what GelfClient did before GelfBuffer: computeJson, then a String body
+ * for RestTemplate. "after" encodes into a reused GelfBuffer and sends it with GelfClient.
+ *
+ * Both post to a local stub server, so the numbers include the HTTP client, but not the network.
+ */
+public class EncoderAllocationTest {
+
+	private static String[] FILES = { "SampleTextFile_10kb.txt", "SampleTextFile_20kb.txt",
+			"SampleTextFile_50kb.txt" };
+	private static int WARMUP_MESSAGES = 2_000;
+	private static int NUM_MESSAGES = 2_000;
+
+	public static void main(String[] args) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/gelf", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			exchange.sendResponseHeaders(202, -1);
+			exchange.close();
+		});
+		server.start();
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/gelf";
+
+		RestTemplate restTemplate = new RestTemplate();
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		GelfClient client = new GelfClient(url);
+		GelfBuffer buffer = new GelfBuffer(1024);
+
+		System.out.printf("%-26s %16s %16s %16s %16s%n", "file", "encode before", "encode after", "send before",
+				"send after");
+		for (String file : FILES) {
+			GelfRequest req = new GelfRequest("allocation test");
+			req.setFullMessage(readFile(file));
+
+			long encodeBefore = measure(() -> GelfEncoder.computeJson(req).getBytes("UTF-8"));
+			long encodeAfter = measure(() -> {
+				buffer.reset();
+				GelfEncoder.encode(req, buffer);
+			});
+			long sendBefore = measure(() -> {
+				HttpEntity<String> entity = new HttpEntity<>(GelfEncoder.computeJson(req), headers);
+				restTemplate.exchange(url, HttpMethod.POST, entity, String.class);
+			});
+			long sendAfter = measure(() -> {
+				buffer.reset();
+				GelfEncoder.encode(req, buffer);
+				client.send(buffer);
+			});
+			System.out.printf("%-26s %16d %16d %16d %16d%n", file, encodeBefore, encodeAfter, sendBefore, sendAfter);
+		}
+		System.out.println("(bytes allocated per message)");
+		server.stop(0);
+	}
+
+	private static long measure(Task task) throws IOException {
+		for (int i = 0; i < WARMUP_MESSAGES; i++) {
+			task.run();
+		}
+		long before = allocatedBytes();
+		for (int i = 0; i < NUM_MESSAGES; i++) {
+			task.run();
+		}
+		return (allocatedBytes() - before) / NUM_MESSAGES;
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String readFile(String fileName) throws IOException {
+		return IOUtils.toString(Application.getInputStream("/com/increff/commons/gelf/" + fileName), "UTF-8");
+	}
+
+	private interface Task {
+		void run() throws IOException;
+	}
+
+}
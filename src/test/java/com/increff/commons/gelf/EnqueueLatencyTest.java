@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Measures the time from GelfManager.add to the transport send under light load, i.e. one message at a
+ * time with a pause in between, so the worker is always idle when the message arrives. Also measures the
+ * CPU used by the idle workers, which should be close to zero.
+ *
+ * The transport does not do any IO, so the numbers are the hand off cost only.
+ */
+public class EnqueueLatencyTest {
+
+	private static int NUM_MESSAGES = 1_000;
+	private static int MAX_PAUSE_MILLIS = 5;
+	private static int IDLE_MILLIS = 3_000;
+
+	public static void main(String[] args) throws InterruptedException {
+		SynchronousQueue<Long> sent = new SynchronousQueue<>();
+		GelfManager manager = new GelfManager(new IGelfTransport() {
+
+			public void send(GelfBuffer gelfMessages) {
+				try {
+					sent.put(System.nanoTime());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			public void close() {
+			}
+
+			public void setMetrics(GelfMetrics metrics) {
+			}
+		});
+		manager.start();
+		Thread.sleep(100);
+
+		long[] latencies = new long[NUM_MESSAGES];
+		for (int i = 0; i < NUM_MESSAGES; i++) {
+			Thread.sleep(ThreadLocalRandom.current().nextInt(MAX_PAUSE_MILLIS + 1));
+			long start = System.nanoTime();
+			manager.add(new GelfRequest("message " + i));
+			latencies[i] = sent.take() - start;
+		}
+		Arrays.sort(latencies);
+		System.out.printf("enqueue to send, micros: p50 %d, p99 %d, p99.9 %d, max %d%n", percentile(latencies, 50),
+				percentile(latencies, 99), percentile(latencies, 99.9), latencies[NUM_MESSAGES - 1] / 1000);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpuBefore = workerCpuNanos(threads);
+		Thread.sleep(IDLE_MILLIS);
+		long cpuIdle = workerCpuNanos(threads) - cpuBefore;
+		System.out.printf("worker cpu while idle for %d ms: %.3f ms%n", IDLE_MILLIS, cpuIdle / 1e6);
+
+		manager.stop();
+		System.exit(0);
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1000;
+	}
+
+	private static long workerCpuNanos(ThreadMXBean threads) {
+		long total = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith("gelf-worker-")) {
+				total += threads.getThreadCpuTime(t.getId());
+			}
+		}
+		return total;
+	}
+
+}
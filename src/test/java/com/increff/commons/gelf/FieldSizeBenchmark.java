@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.io.IOUtils;
+
+/*
+ * Compares measuring the UTF-8 size of large fields the way GelfRequest and GelfEncoder used to (a
+ * getBytes copy in markLongField and another one in the encoder) with GelfEncoder.utf8Length, which is
+ * now done once per field when it is added. Reports bytes allocated and time per field, plus the
+ * allocation of adding the field to a request and encoding it into a reused GelfBuffer.
+ */
+public class FieldSizeBenchmark {
+
+	private static String[] FILES = { "SampleTextFile_10kb.txt", "SampleTextFile_20kb.txt",
+			"SampleTextFile_50kb.txt" };
+	private static int WARMUP_OPS = 5_000;
+	private static int NUM_OPS = 5_000;
+
+	private static long sink;
+
+	public static void main(String[] args) throws IOException {
+		GelfBuffer buffer = new GelfBuffer(1024);
+		System.out.printf("%-26s %14s %14s %12s %12s %16s%n", "file", "before B/op", "after B/op", "before ns", "after ns",
+				"add+encode B/op");
+		for (String file : FILES) {
+			String data = readFile(file);
+			Result before = measure(() -> {
+				// isLongField in markLongField, then getSize in the encoder
+				sink += data.getBytes("utf-8").length;
+				sink += data.getBytes("utf-8").length;
+			});
+			Result after = measure(() -> sink += GelfEncoder.utf8Length(data));
+			Result encode = measure(() -> {
+				GelfRequest req = new GelfRequest("size benchmark");
+				req.addAdditionalField("_http_response", data);
+				buffer.reset();
+				GelfEncoder.encode(req, buffer);
+			});
+			System.out.printf("%-26s %14d %14d %12d %12d %16d%n", file, before.bytes, after.bytes, before.nanos,
+					after.nanos, encode.bytes);
+		}
+		System.out.println("(per field)");
+	}
+
+	private static Result measure(Task task) throws IOException {
+		for (int i = 0; i < WARMUP_OPS; i++) {
+			task.run();
+		}
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < NUM_OPS; i++) {
+			task.run();
+		}
+		Result r = new Result();
+		r.nanos = (System.nanoTime() - start) / NUM_OPS;
+		r.bytes = (allocatedBytes() - bytes) / NUM_OPS;
+		return r;
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String readFile(String fileName) throws IOException {
+		return IOUtils.toString(Application.getInputStream("/com/increff/commons/gelf/" + fileName), "UTF-8");
+	}
+
+	private static class Result {
+		private long bytes;
+		private long nanos;
+	}
+
+	private interface Task {
+		void run() throws IOException;
+	}
+
+}
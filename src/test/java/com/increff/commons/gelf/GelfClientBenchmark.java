@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * GelfClient end to end against an in-process HTTP stub, which reads the body and answers 202. send
+ * is the public send(GelfRequest), sendBuffer is what the GelfManager workers do: encode into a reused
+ * GelfBuffer and send that. Loopback only, so this is the client side cost, not the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GelfClientBenchmark {
+
+	@Param({ "SampleTextFile_10kb.txt", "SampleTextFile_50kb.txt" })
+	private String file;
+
+	private HttpServer server;
+	private GelfClient client;
+	private GelfRequest req;
+
+	@Setup
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/gelf", exchange -> {
+			IOUtils.toByteArray(exchange.getRequestBody());
+			exchange.sendResponseHeaders(202, -1);
+			exchange.close();
+		});
+		server.start();
+		client = new GelfClient("http://127.0.0.1:" + server.getAddress().getPort() + "/gelf");
+		req = GelfEncoderBenchmark.newProxyRequest(GelfEncoderBenchmark.readFile(file));
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+		server.stop(0);
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadBuffer {
+		private GelfBuffer buffer = new GelfBuffer(1024);
+	}
+
+	@Benchmark
+	public void send() throws IOException {
+		client.send(req);
+	}
+
+	@Benchmark
+	public void sendBuffer(ThreadBuffer b) throws IOException {
+		b.buffer.reset();
+		GelfEncoder.encode(req, b.buffer);
+		client.send(b.buffer);
+	}
+
+}
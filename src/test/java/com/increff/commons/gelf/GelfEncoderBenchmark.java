@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * GelfEncoder.computeJson and encode into a reused GelfBuffer, for a proxy log like the one in
+ * Application, with a sample file as request and response body. Run with the gc profiler (see
+ * BenchmarkRunner) for the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GelfEncoderBenchmark {
+
+	@Param({ "SampleTextFile_10kb.txt", "SampleTextFile_20kb.txt", "SampleTextFile_50kb.txt" })
+	private String file;
+
+	private GelfRequest req;
+	private GelfBuffer buffer;
+
+	@Setup
+	public void setup() throws IOException {
+		req = newProxyRequest(readFile(file));
+		buffer = new GelfBuffer(1024);
+	}
+
+	@Benchmark
+	public String computeJson() throws IOException {
+		return GelfEncoder.computeJson(req);
+	}
+
+	@Benchmark
+	public GelfBuffer encode() throws IOException {
+		buffer.reset();
+		GelfEncoder.encode(req, buffer);
+		return buffer;
+	}
+
+	// Same fields as Application.doProxy
+	static GelfRequest newProxyRequest(String data) {
+		GelfRequest req = new GelfRequest("proxy call");
+		req.setHost("proxy-1");
+		req.addAdditionalField("_http_uri", "https://api.example.com/orders");
+		req.addAdditionalField("_http_headers", "Accept: application/json");
+		req.addAdditionalField("_http_request", data);
+		req.addAdditionalField("_http_response", data);
+		req.addAdditionalField("_http_method", "POST");
+		req.addAdditionalField("_http_status", 200);
+		req.addAdditionalField("_proxy_call", "get_orders");
+		req.addAdditionalField("_proxy_channel", "flipkart");
+		req.addAdditionalField("_proxy_client", "1100113");
+		req.addAdditionalField("_proxy_time", GelfRequest.getEpochInSeconds(System.currentTimeMillis()));
+		req.addAdditionalField("_proxy_duration", 1);
+		req.addAdditionalField("_proxy_status", "SUCCESS");
+		return req;
+	}
+
+	static String readFile(String fileName) throws IOException {
+		return IOUtils.toString(Application.getInputStream("/com/increff/commons/gelf/" + fileName), "UTF-8");
+	}
+
+}
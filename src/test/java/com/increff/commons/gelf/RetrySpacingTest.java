@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.increff.commons.retry.CircuitBreaker;
+import com.increff.commons.retry.RetryPolicy;
+import com.increff.commons.stub.GelfStubServer;
+
+/*
+ * Sends one message to a stub that answers every request with 503, through the sync HTTP client, and
+ * checks the time between attempts against the retry policy: at least the delay less its jitter (half
+ * of it), at most the delay plus some slack. Backoffs above the 1 second idle wait must be kept too.
+ * The breaker is set so that it does not open. Exits with 1 if a gap is off.
+ */
+public class RetrySpacingTest {
+
+	private static int BASE_DELAY_MS = 400;
+	private static int MAX_DELAY_MS = 2_400;
+	private static int MAX_ATTEMPTS = 6;
+	private static int SLACK_MS = 300;
+
+	public static void main(String[] args) throws Exception {
+		GelfStubServer stub = new GelfStubServer();
+		stub.getFaults().setErrorRate(1, 503);
+		stub.start();
+
+		List<Long> attempts = new CopyOnWriteArrayList<>();
+		GelfClient client = new GelfClient(stub.getHttpUrl());
+		GelfManager manager = new GelfManager(new IGelfTransport() {
+
+			public void send(GelfBuffer gelfMessages) throws IOException {
+				attempts.add(System.nanoTime());
+				client.send(gelfMessages);
+			}
+
+			public void close() {
+				client.close();
+			}
+
+			public void setMetrics(GelfMetrics metrics) {
+				client.setMetrics(metrics);
+			}
+		});
+		RetryPolicy policy = new RetryPolicy(BASE_DELAY_MS, MAX_DELAY_MS, MAX_ATTEMPTS);
+		manager.setRetryPolicy(policy, new CircuitBreaker(Integer.MAX_VALUE, policy));
+		manager.start();
+		manager.add(new GelfRequest("retry spacing"));
+
+		long maxWaitMs = 0;
+		for (int i = 1; i < MAX_ATTEMPTS; i++) {
+			maxWaitMs += expectedDelayMs(i) + SLACK_MS;
+		}
+		long deadline = System.currentTimeMillis() + maxWaitMs + 2_000;
+		while (attempts.size() < MAX_ATTEMPTS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		boolean ok = attempts.size() == MAX_ATTEMPTS;
+		System.out.println("attempts: " + attempts.size() + " of " + MAX_ATTEMPTS);
+		for (int i = 1; i < attempts.size(); i++) {
+			long gapMs = (attempts.get(i) - attempts.get(i - 1)) / 1_000_000;
+			long delayMs = expectedDelayMs(i);
+			boolean gapOk = gapMs >= delayMs / 2 && gapMs <= delayMs + SLACK_MS;
+			ok &= gapOk;
+			System.out.printf("after failure %d: waited %d ms, policy %d-%d ms %s%n", i, gapMs, delayMs / 2, delayMs,
+					gapOk ? "" : "<- off");
+		}
+
+		manager.stop();
+		stub.stop();
+		System.exit(ok ? 0 : 1);
+	}
+
+	// The delay before jitter, see RetryPolicy.getDelayMs
+	private static long expectedDelayMs(int failures) {
+		return Math.min(MAX_DELAY_MS, (long) BASE_DELAY_MS << (failures - 1));
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.increff.commons.queue.SpillQueue;
+
+/*
+ * Writes records to a spill over two segments, corrupts the length header of the third one (negative,
+ * then past the end of the segment) and starts a manager on it. The records before the corrupt one and
+ * those of the second segment must be replayed, the rest of the first segment skipped, and the worker
+ * must keep sending new messages afterwards. Exits with 1 otherwise.
+ */
+public class SpillCorruptionTest {
+
+	private static long SPILL_BYTES = 64 * 1024; // segments of 16KB, see GelfManager.enableSpill
+	private static int NUM_RECORDS = 1_000; // about 30 bytes each
+	private static int CORRUPT_RECORD = 2;
+
+	public static void main(String[] args) throws Exception {
+		boolean ok = run(-7) & run(1 << 20);
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean run(int corruptLength) throws Exception {
+		File dir = Files.createTempDirectory("spill-corruption").toFile();
+		SpillQueue spill = new SpillQueue(dir, (int) (SPILL_BYTES / 4), SPILL_BYTES);
+		int corruptPos = 0;
+		for (int i = 0; i < NUM_RECORDS; i++) {
+			byte[] json = ("{\"short_message\":\"spilled " + i + "\"}").getBytes(StandardCharsets.UTF_8);
+			if (i < CORRUPT_RECORD) {
+				corruptPos += 4 + json.length;
+			}
+			spill.offer(json, 0, json.length);
+		}
+		spill.close();
+		File[] segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+		Arrays.sort(segments);
+		try (RandomAccessFile f = new RandomAccessFile(segments[0], "rw")) {
+			f.seek(corruptPos);
+			f.writeInt(corruptLength);
+		}
+
+		List<String> sent = new CopyOnWriteArrayList<>();
+		GelfManager manager = new GelfManager(new IGelfTransport() {
+
+			public void send(GelfBuffer gelfMessages) {
+				for (int i = 0; i < gelfMessages.getNumMessages(); i++) {
+					sent.add(gelfMessages.getMessage(i));
+				}
+			}
+
+			public void close() {
+			}
+
+			public void setMetrics(GelfMetrics metrics) {
+			}
+		});
+		manager.enableSpill(dir, SPILL_BYTES);
+		manager.start();
+		Thread.sleep(200);
+		manager.add(new GelfRequest("after corruption"));
+		long deadline = System.currentTimeMillis() + 3_000;
+		String last = "spilled " + (NUM_RECORDS - 1) + "\"";
+		while (!(contains(sent, "after corruption") && contains(sent, last))
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		manager.stop();
+
+		boolean replayed = contains(sent, "spilled 0\"") && contains(sent, "spilled 1\"") && contains(sent, last);
+		boolean skipped = !contains(sent, "spilled 2\"");
+		boolean workerAlive = contains(sent, "after corruption");
+		System.out.println("length " + corruptLength + ": replayed " + sent.size() + " with the second segment "
+				+ replayed + ", skipped the corrupt one " + skipped + ", worker still sending " + workerAlive);
+		return replayed && skipped && workerAlive;
+	}
+
+	private static boolean contains(List<String> sent, String text) {
+		for (String json : sent) {
+			if (json.contains(text)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
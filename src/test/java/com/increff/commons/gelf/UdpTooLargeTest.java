@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.increff.commons.metrics.DropReason;
+import com.increff.commons.stub.GelfStubServer;
+
+/*
+ * Sends a batch of a small message, one too large for the GELF UDP chunk limit and another small one to
+ * the UDP stub. The large one must be dropped as TOO_LARGE, logged once through the log provider, and the
+ * other two sent exactly once, without retries. Exits with 1 otherwise.
+ */
+public class UdpTooLargeTest {
+
+	private static int LARGE_MESSAGE_SIZE = 2 * 1024 * 1024; // over 128 chunks of 8KB
+
+	public static void main(String[] args) throws Exception {
+		GelfStubServer stub = new GelfStubServer();
+		stub.start();
+
+		List<String> logged = new CopyOnWriteArrayList<>();
+		GelfManager manager = new GelfManager(
+				new GelfUdpClient("127.0.0.1", stub.getUdpPort(), GelfCompression.NONE));
+		manager.setLogProvider(logged::add);
+		manager.setBatching(3, 2 * LARGE_MESSAGE_SIZE, 100);
+		manager.add(new GelfRequest("before"));
+		GelfRequest large = new GelfRequest("large");
+		char[] chars = new char[LARGE_MESSAGE_SIZE];
+		Arrays.fill(chars, 'x');
+		large.setFullMessage(new String(chars));
+		manager.addLargeReq(large);
+		manager.add(new GelfRequest("after"));
+		manager.start();
+
+		GelfMetrics m = manager.getMetrics();
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (m.getNumProcessed() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// late duplicates would show up here
+		Thread.sleep(500);
+
+		long tooLarge = m.getNumDropped(DropReason.TOO_LARGE);
+		System.out.println("success " + m.getNumSuccess() + ", dropped " + m.getNumDropped() + " (too large "
+				+ tooLarge + "), logged " + logged.size() + ", stub received " + stub.getNumMessages());
+		boolean ok = m.getNumSuccess() == 2 && m.getNumDropped() == 1 && tooLarge == 1 && logged.size() == 1
+				&& stub.getNumMessages() == 2;
+
+		manager.stop();
+		stub.stop();
+		System.exit(ok ? 0 : 1);
+	}
+
+}
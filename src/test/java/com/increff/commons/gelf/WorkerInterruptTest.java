@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.gelf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.increff.commons.es.ESManager;
+
+/*
+ * Runs idle workers on an executor of our own, shuts it down with shutdownNow() and checks that the
+ * interrupted workers stop the manager and exit, instead of spinning on the idle wait.
+ * Exits with 1 if they do not.
+ */
+public class WorkerInterruptTest {
+
+	private static int IDLE_MILLIS = 200;
+	private static int EXIT_MILLIS = 2_000;
+
+	public static void main(String[] args) throws InterruptedException {
+		ExecutorService gelfExecutor = Executors.newFixedThreadPool(2);
+		GelfManager gelf = new GelfManager(new IGelfTransport() {
+
+			public void send(GelfBuffer gelfMessages) {
+			}
+
+			public void close() {
+			}
+
+			public void setMetrics(GelfMetrics metrics) {
+			}
+		});
+		gelf.setNumWorkers(2);
+		gelf.start(gelfExecutor);
+		boolean gelfOk = interrupt(gelfExecutor) && !gelf.isRunning();
+		System.out.println("gelf workers exited: " + gelfOk);
+
+		ExecutorService esExecutor = Executors.newSingleThreadExecutor();
+		ESManager es = new ESManager("localhost", 9200, "user", "password");
+		es.start(esExecutor);
+		boolean esOk = interrupt(esExecutor) && !es.isRunning();
+		System.out.println("es sender exited: " + esOk);
+
+		System.exit(gelfOk && esOk ? 0 : 1);
+	}
+
+	// Lets the workers go idle, interrupts them and returns true if they all exit in time
+	private static boolean interrupt(ExecutorService executor) throws InterruptedException {
+		Thread.sleep(IDLE_MILLIS);
+		executor.shutdownNow();
+		return executor.awaitTermination(EXIT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.increff.commons.es.ESManager;
+import com.increff.commons.es.ESRequest;
+import com.increff.commons.es.ESRequestStatus;
+import com.increff.commons.gelf.GelfManager;
+import com.increff.commons.gelf.GelfRequest;
+
+/*
+ * GelfManager.add and ESManager.add, run by BenchmarkRunner with 1 to 64 threads. As in
+ * QueueContentionBenchmark the managers are not started, so once the queue is full every add also
+ * evicts the oldest request, which is the most the queue does per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManagerAddBenchmark {
+
+	public static int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static int NUM_REQUESTS = 1024;
+
+	private GelfManager gelfManager;
+	private ESManager esManager;
+	private GelfRequest[] gelfRequests;
+	private ESRequest[] esRequests;
+
+	@Setup
+	public void setup() {
+		gelfManager = new GelfManager("http://127.0.0.1:12201/gelf");
+		esManager = new ESManager("127.0.0.1", 9200, "user", "password");
+		gelfRequests = new GelfRequest[NUM_REQUESTS];
+		esRequests = new ESRequest[NUM_REQUESTS];
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			gelfRequests[i] = new GelfRequest("message " + i);
+			esRequests[i] = ESRequest.builder().application("bench").requestName("request " + i)
+					.status(ESRequestStatus.SUCCESS).timestamp(ZonedDateTime.now()).endTimestamp(ZonedDateTime.now())
+					.build();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		private int next() {
+			return next++ & (NUM_REQUESTS - 1);
+		}
+	}
+
+	@Benchmark
+	public void gelfAdd(Cursor c) {
+		gelfManager.add(gelfRequests[c.next()]);
+	}
+
+	@Benchmark
+	public void esAdd(Cursor c) {
+		esManager.add(esRequests[c.next()]);
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.queue;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.increff.commons.es.ESManager;
+import com.increff.commons.es.ESRequest;
+import com.increff.commons.es.ESRequestStatus;
+import com.increff.commons.gelf.GelfManager;
+import com.increff.commons.gelf.GelfRequest;
+
+/*
+ * Measures add() throughput of the managers with 1 to 64 producer threads, against a synchronized
+ * LinkedBlockingDeque doing the same drop oldest logic (what the managers used before).
+ *
+ * The managers are not started, so every add beyond the capacity evicts the oldest request. This is the
+ * worst case for the queue: every call both adds and removes.
+ */
+public class QueueContentionBenchmark {
+
+	private static int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static int WARMUP_MILLIS = 500;
+	private static int RUN_MILLIS = 1_000;
+	private static int NUM_REQUESTS = 1024;
+
+	public static void main(String[] args) throws InterruptedException {
+		GelfRequest[] gelfRequests = new GelfRequest[NUM_REQUESTS];
+		ESRequest[] esRequests = new ESRequest[NUM_REQUESTS];
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			gelfRequests[i] = new GelfRequest("message " + i);
+			esRequests[i] = ESRequest.builder().application("bench").requestName("request " + i)
+					.status(ESRequestStatus.SUCCESS).timestamp(ZonedDateTime.now()).endTimestamp(ZonedDateTime.now())
+					.build();
+		}
+		GelfManager gelfManager = new GelfManager("http://localhost:12201/gelf");
+		ESManager esManager = new ESManager("localhost", 9200, "user", "password");
+		SynchronizedQueue<GelfRequest> baseline = new SynchronizedQueue<>();
+
+		System.out.printf("%8s %20s %20s %20s%n", "threads", "synchronized ops/s", "GelfManager ops/s", "ESManager ops/s");
+		for (int threads : THREADS) {
+			double b = measure(threads, i -> baseline.add(gelfRequests[i]));
+			double g = measure(threads, i -> gelfManager.add(gelfRequests[i]));
+			double e = measure(threads, i -> esManager.add(esRequests[i]));
+			System.out.printf("%8d %,20.0f %,20.0f %,20.0f%n", threads, b, g, e);
+		}
+		System.exit(0);
+	}
+
+	private static double measure(int threads, Consumer<Integer> add) throws InterruptedException {
+		run(threads, WARMUP_MILLIS, add);
+		return run(threads, RUN_MILLIS, add) * 1000.0 / RUN_MILLIS;
+	}
+
+	private static long run(int threads, int millis, Consumer<Integer> add) throws InterruptedException {
+		AtomicBoolean stop = new AtomicBoolean();
+		LongAdder ops = new LongAdder();
+		CountDownLatch started = new CountDownLatch(threads);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			int offset = t * 31;
+			new Thread(() -> {
+				started.countDown();
+				long n = 0;
+				while (!stop.get()) {
+					add.accept((int) ((n + offset) & (NUM_REQUESTS - 1)));
+					n++;
+				}
+				ops.add(n);
+				done.countDown();
+			}).start();
+		}
+		started.await();
+		Thread.sleep(millis);
+		stop.set(true);
+		done.await();
+		return ops.sum();
+	}
+
+	// What the managers did before, for comparison
+	private static class SynchronizedQueue<T> {
+
+		private LinkedBlockingDeque<T> q = new LinkedBlockingDeque<>(1000);
+
+		public synchronized void add(T req) {
+			if (q.remainingCapacity() < 10) {
+				q.pollFirst();
+			}
+			q.offer(req);
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.stub;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Just enough of the ElasticSearch REST API for ESClient, on an ephemeral localhost port:
+ * - GET / answers the cluster info the high level client checks before the first call
+ * - POST /<index>/_doc indexes one document
+ * - POST /_bulk indexes a bulk, faults decide the status of each document
+ *
+ * Documents are counted, not stored. Latency, resets and slow reads apply per request, errors per
+ * request for index calls and per document inside a bulk, the way ES rejects bulk items with 429.
+ */
+public class ESStubServer {
+
+	private static final String INFO = "{\"name\":\"stub\",\"cluster_name\":\"stub\",\"cluster_uuid\":\"stub\","
+			+ "\"version\":{\"number\":\"7.17.4\",\"build_flavor\":\"default\",\"build_type\":\"tar\","
+			+ "\"build_hash\":\"stub\",\"build_date\":\"2022-05-18T00:00:00Z\",\"build_snapshot\":false,"
+			+ "\"lucene_version\":\"8.11.1\",\"minimum_wire_compatibility_version\":\"6.8.0\","
+			+ "\"minimum_index_compatibility_version\":\"6.0.0-beta1\"},\"tagline\":\"You Know, for Search\"}";
+	private static final String CREATED = "\"_id\":\"stub\",\"_version\":1,\"result\":\"created\","
+			+ "\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},\"_seq_no\":0,\"_primary_term\":1";
+
+	private final StubFaults faults = new StubFaults();
+	private final LongAdder numDocuments = new LongAdder();
+	private final LongAdder numRequests = new LongAdder();
+	private final LongAdder numErrors = new LongAdder();
+	private final LongAdder numResets = new LongAdder();
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "es-stub");
+		t.setDaemon(true);
+		return t;
+	});
+	private HttpServer http;
+
+	public synchronized void start() throws IOException {
+		if (http != null) {
+			return;
+		}
+		http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		http.createContext("/", this::handle);
+		http.setExecutor(executor);
+		http.start();
+	}
+
+	public synchronized void stop() {
+		if (http == null) {
+			return;
+		}
+		http.stop(0);
+		http = null;
+		executor.shutdownNow();
+	}
+
+	public StubFaults getFaults() {
+		return faults;
+	}
+
+	// for new ESClient("127.0.0.1", getPort(), user, password)
+	public int getPort() {
+		return http.getAddress().getPort();
+	}
+
+	// documents indexed successfully
+	public long getNumDocuments() {
+		return numDocuments.sum();
+	}
+
+	public long getNumRequests() {
+		return numRequests.sum();
+	}
+
+	// requests, or bulk items, answered with an error status
+	public long getNumErrors() {
+		return numErrors.sum();
+	}
+
+	public long getNumResets() {
+		return numResets.sum();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			String path = exchange.getRequestURI().getPath();
+			if ("GET".equals(exchange.getRequestMethod()) && "/".equals(path)) {
+				respond(exchange, 200, INFO);
+				return;
+			}
+
+			byte[] body = faults.readAll(exchange.getRequestBody());
+			numRequests.increment();
+			faults.delay();
+			if (faults.shouldReset()) {
+				// closing before the response headers drops the connection
+				numResets.increment();
+				return;
+			}
+			if (path.endsWith("/_bulk")) {
+				respond(exchange, 200, bulk(body));
+				return;
+			}
+			int status = faults.nextErrorStatus();
+			if (status != 0) {
+				numErrors.increment();
+				respond(exchange, status, error(status));
+				return;
+			}
+			numDocuments.increment();
+			respond(exchange, 201, "{\"_index\":\"" + getIndex(path) + "\",\"_type\":\"_doc\"," + CREATED + "}");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private String bulk(byte[] body) throws IOException {
+		BufferedReader r = new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+		StringBuilder items = new StringBuilder();
+		boolean errors = false;
+		String line;
+		boolean action = true;
+		while ((line = r.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			// action and source lines alternate, ESClient only sends index actions
+			if (!action) {
+				action = true;
+				continue;
+			}
+			action = false;
+			if (items.length() > 0) {
+				items.append(',');
+			}
+			int status = faults.nextErrorStatus();
+			items.append("{\"index\":{\"_index\":\"stub\",\"_type\":\"_doc\",");
+			if (status != 0) {
+				numErrors.increment();
+				errors = true;
+				items.append("\"_id\":\"stub\",\"status\":").append(status).append(",\"error\":")
+						.append(errorCause(status)).append("}}");
+			} else {
+				numDocuments.increment();
+				items.append(CREATED).append(",\"status\":201}}");
+			}
+		}
+		return "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}";
+	}
+
+	private static String getIndex(String path) {
+		int end = path.indexOf('/', 1);
+		return end < 0 ? path.substring(1) : path.substring(1, end);
+	}
+
+	private static String error(int status) {
+		return "{\"error\":" + errorCause(status) + ",\"status\":" + status + "}";
+	}
+
+	private static String errorCause(int status) {
+		String type = status == 429 ? "es_rejected_execution_exception" : "stub_exception";
+		return "{\"type\":\"" + type + "\",\"reason\":\"injected by ESStubServer\"}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+}
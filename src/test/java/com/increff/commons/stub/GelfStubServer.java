@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * A GELF input on localhost for tests and load tests, on ephemeral ports:
+ * - HTTP on getHttpUrl(), one message per line, gzip / deflate bodies are decoded. Answers 202
+ * - TCP on getTcpPort(), messages end with a null byte
+ * - UDP on getUdpPort(), a chunked message is counted on its first chunk
+ *
+ * Messages are counted, not parsed. Faults (see StubFaults) apply per HTTP request, resets and slow
+ * reads also per TCP connection. UDP has no way to answer, so it only counts.
+ */
+public class GelfStubServer {
+
+	private final StubFaults faults = new StubFaults();
+	private final LongAdder numMessages = new LongAdder();
+	private final LongAdder numBytes = new LongAdder();
+	private final LongAdder numErrors = new LongAdder();
+	private final LongAdder numResets = new LongAdder();
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "gelf-stub");
+		t.setDaemon(true);
+		return t;
+	});
+	private HttpServer http;
+	private ServerSocket tcp;
+	private DatagramSocket udp;
+	private volatile boolean running;
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		running = true;
+		http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		http.createContext("/gelf", this::handleHttp);
+		http.setExecutor(executor);
+		http.start();
+
+		tcp = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		executor.execute(this::acceptTcp);
+
+		udp = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+		udp.setReceiveBufferSize(4 * 1024 * 1024);
+		executor.execute(this::receiveUdp);
+	}
+
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		http.stop(0);
+		closeQuietly(tcp);
+		udp.close();
+		executor.shutdownNow();
+	}
+
+	public StubFaults getFaults() {
+		return faults;
+	}
+
+	public String getHttpUrl() {
+		return "http://127.0.0.1:" + http.getAddress().getPort() + "/gelf";
+	}
+
+	public int getTcpPort() {
+		return tcp.getLocalPort();
+	}
+
+	public int getUdpPort() {
+		return udp.getLocalPort();
+	}
+
+	public long getNumMessages() {
+		return numMessages.sum();
+	}
+
+	// bytes received, as sent (compressed if it was)
+	public long getNumBytes() {
+		return numBytes.sum();
+	}
+
+	public long getNumErrors() {
+		return numErrors.sum();
+	}
+
+	public long getNumResets() {
+		return numResets.sum();
+	}
+
+	private void handleHttp(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = faults.readAll(exchange.getRequestBody());
+			numBytes.add(body.length);
+			faults.delay();
+			if (faults.shouldReset()) {
+				// closing before the response headers drops the connection
+				numResets.increment();
+				return;
+			}
+			int status = faults.nextErrorStatus();
+			if (status != 0) {
+				numErrors.increment();
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+			numMessages.add(countLines(decode(body, exchange.getRequestHeaders().getFirst("Content-Encoding"))));
+			exchange.sendResponseHeaders(202, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static InputStream decode(byte[] body, String encoding) throws IOException {
+		InputStream in = new ByteArrayInputStream(body);
+		if ("gzip".equals(encoding)) {
+			return new GZIPInputStream(in);
+		}
+		if ("deflate".equals(encoding)) {
+			return new InflaterInputStream(in);
+		}
+		return in;
+	}
+
+	// non empty lines
+	private static int countLines(InputStream in) throws IOException {
+		int lines = 0;
+		boolean empty = true;
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			for (int i = 0; i < n; i++) {
+				if (buf[i] == '\n') {
+					lines += empty ? 0 : 1;
+					empty = true;
+				} else {
+					empty = false;
+				}
+			}
+		}
+		return empty ? lines : lines + 1;
+	}
+
+	private void acceptTcp() {
+		while (running) {
+			try {
+				Socket socket = tcp.accept();
+				executor.execute(() -> readTcp(socket));
+			} catch (IOException e) {
+				// closed by stop
+			}
+		}
+	}
+
+	private void readTcp(Socket socket) {
+		try (InputStream in = socket.getInputStream()) {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = faults.read(in, buf)) != -1) {
+				numBytes.add(n);
+				for (int i = 0; i < n; i++) {
+					if (buf[i] != 0) {
+						continue;
+					}
+					numMessages.increment();
+					if (faults.shouldReset()) {
+						// RST instead of FIN
+						numResets.increment();
+						socket.setSoLinger(true, 0);
+						return;
+					}
+				}
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			closeQuietly(socket);
+		}
+	}
+
+	private void receiveUdp() {
+		byte[] buf = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		while (running) {
+			try {
+				udp.receive(packet);
+			} catch (SocketException e) {
+				return; // closed by stop
+			} catch (IOException e) {
+				continue;
+			}
+			numBytes.add(packet.getLength());
+			boolean chunked = packet.getLength() > 12 && buf[0] == 0x1e && buf[1] == 0x0f;
+			// chunk header: magic, 8 byte id, sequence number, sequence count
+			if (!chunked || buf[10] == 0) {
+				numMessages.increment();
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.stub;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.IOUtils;
+
+import com.increff.commons.es.ESManager;
+import com.increff.commons.es.ESMetricsSnapshot;
+import com.increff.commons.es.ESRequest;
+import com.increff.commons.es.ESRequestStatus;
+import com.increff.commons.gelf.GelfAsyncClient;
+import com.increff.commons.gelf.GelfManager;
+import com.increff.commons.gelf.GelfMetricsSnapshot;
+import com.increff.commons.gelf.GelfRequest;
+import com.increff.commons.gelf.GelfTcpClient;
+import com.increff.commons.gelf.GelfUdpClient;
+import com.increff.commons.metrics.DrainReport;
+
+/*
+ * Drives a GelfManager or ESManager against the stub servers at a target rate, then waits for the
+ * queue to drain and prints what was delivered, what was dropped and why, and the latencies from the
+ * manager metrics. Arguments are key=value, all optional:
+ *
+ * target=gelf-http | gelf-async | gelf-tcp | gelf-udp | es | es-bulk (gelf-http)
+ * rate=<adds per second> (1000), seconds=<run time> (10), threads=<producers> (4)
+ * payload=<sample file under com/increff/commons/gelf, as request and response body> (none)
+ * workers=<GelfManager workers> (1), batch=<GelfManager batch size, 0 for no batching> (0)
+ * inFlight=<GelfAsyncClient requests in flight> (16)
+ * scheduler=<threads of a ScheduledExecutorService to run the manager on, 0 for its own threads> (0)
+ * shutdown=<ms>: right after the run, shut the manager down with this deadline instead of waiting for
+ * the queue to drain, as on a deploy (none)
+ * latencyMs, errorRate, resetRate, slowReadBytesPerSec: see StubFaults (0)
+ *
+ * eg. target=es-bulk rate=5000 errorRate=0.05 latencyMs=20
+ */
+public class LoadGenerator {
+
+	private static int DRAIN_WAIT_TIME = 30_000; // 30 seconds
+	private static int BATCH_MAX_BYTES = 1024 * 1024;
+	private static int BATCH_LINGER_TIME = 50; // 50 milliseconds
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+		String target = options.getOrDefault("target", "gelf-http");
+		int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+		int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+		int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+		String payload = options.containsKey("payload") ? readFile(options.get("payload")) : "";
+
+		int schedulerThreads = Integer.parseInt(options.getOrDefault("scheduler", "0"));
+		ScheduledExecutorService scheduler = schedulerThreads > 0 ? Executors.newScheduledThreadPool(schedulerThreads)
+				: null;
+
+		Target t;
+		if (target.startsWith("gelf")) {
+			int workers = Integer.parseInt(options.getOrDefault("workers", "1"));
+			int batch = Integer.parseInt(options.getOrDefault("batch", "0"));
+			int inFlight = Integer.parseInt(options.getOrDefault("inFlight", "16"));
+			t = new GelfTarget(target, payload, workers, batch, inFlight, scheduler);
+		} else {
+			t = new ESTarget(target, payload, scheduler);
+		}
+		StubFaults faults = t.getFaults();
+		faults.setLatencyMs(Integer.parseInt(options.getOrDefault("latencyMs", "0")));
+		faults.setErrorRate(Double.parseDouble(options.getOrDefault("errorRate", "0")));
+		faults.setResetRate(Double.parseDouble(options.getOrDefault("resetRate", "0")));
+		faults.setSlowReadBytesPerSec(Integer.parseInt(options.getOrDefault("slowReadBytesPerSec", "0")));
+
+		System.out.printf("%s: %d/s for %d s with %d producers%n", target, rate, seconds, threads);
+		long start = System.nanoTime();
+		long added = run(t, rate, seconds, threads);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.printf("added %d, %.0f/s%n", added, added / elapsed);
+
+		if (options.containsKey("shutdown")) {
+			System.out.println(t.shutdown(Long.parseLong(options.get("shutdown"))));
+		} else {
+			long deadline = System.currentTimeMillis() + DRAIN_WAIT_TIME;
+			while (!t.isDrained() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+			}
+		}
+		t.report();
+		System.exit(0);
+	}
+
+	// Each producer adds at rate / threads, on a fixed schedule so that a slow add does not lower the rate
+	private static long run(Target t, int rate, int seconds, int threads) throws InterruptedException {
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		LongAdder added = new LongAdder();
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			long offset = intervalNanos * i / threads;
+			new Thread(() -> {
+				long next = System.nanoTime() + offset;
+				int n = 0;
+				while (next < end) {
+					long wait = next - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					t.add(n++);
+					next += intervalNanos;
+				}
+				added.add(n);
+				done.countDown();
+			}, "load-" + i).start();
+		}
+		done.await();
+		return added.sum();
+	}
+
+	private static String readFile(String fileName) throws IOException {
+		return IOUtils.toString(LoadGenerator.class.getResourceAsStream("/com/increff/commons/gelf/" + fileName),
+				"UTF-8");
+	}
+
+	private interface Target {
+
+		StubFaults getFaults();
+
+		void add(int i);
+
+		boolean isDrained();
+
+		DrainReport shutdown(long timeoutMs);
+
+		void report();
+	}
+
+	private static class GelfTarget implements Target {
+
+		private final GelfStubServer stub = new GelfStubServer();
+		private final GelfManager manager;
+		private final String payload;
+
+		private GelfTarget(String target, String payload, int workers, int batch, int inFlight,
+				ScheduledExecutorService scheduler) throws IOException {
+			stub.start();
+			if (target.equals("gelf-async")) {
+				manager = new GelfManager(() -> newAsyncClient(inFlight));
+			} else if (target.equals("gelf-tcp")) {
+				manager = new GelfManager(new GelfTcpClient("127.0.0.1", stub.getTcpPort()));
+			} else if (target.equals("gelf-udp")) {
+				manager = new GelfManager(new GelfUdpClient("127.0.0.1", stub.getUdpPort()));
+			} else {
+				manager = new GelfManager(stub.getHttpUrl());
+			}
+			manager.setNumWorkers(workers);
+			if (batch > 0) {
+				manager.setBatching(batch, BATCH_MAX_BYTES, BATCH_LINGER_TIME);
+			}
+			this.payload = payload;
+			if (scheduler == null) {
+				manager.start();
+			} else {
+				manager.startScheduled(scheduler);
+			}
+		}
+
+		private GelfAsyncClient newAsyncClient(int inFlight) {
+			try {
+				return new GelfAsyncClient(stub.getHttpUrl(), inFlight);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public StubFaults getFaults() {
+			return stub.getFaults();
+		}
+
+		public void add(int i) {
+			GelfRequest req = new GelfRequest("load " + i);
+			req.setHost("load-generator");
+			if (!payload.isEmpty()) {
+				req.addAdditionalField("_http_request", payload);
+				req.addAdditionalField("_http_response", payload);
+			}
+			req.addAdditionalField("_http_status", 200);
+			manager.add(req);
+		}
+
+		public boolean isDrained() {
+			// includes a batch that is still lingering
+			GelfMetricsSnapshot m = manager.getMetrics().snapshot();
+			return manager.getQueueSize() == 0 && m.getNumSuccess() + m.getNumDropped() >= m.getNumReceived();
+		}
+
+		public DrainReport shutdown(long timeoutMs) {
+			return manager.shutdown(timeoutMs);
+		}
+
+		public void report() {
+			GelfMetricsSnapshot m = manager.getMetrics().snapshot();
+			System.out.printf("delivered %d (stub), %d (manager), dropped %d %s, still queued %d%n",
+					stub.getNumMessages(), m.getNumSuccess(), m.getNumDropped(), m.getNumDroppedByReason(),
+					manager.getQueueSize());
+			System.out.printf("stub errors %d, resets %d%n", stub.getNumErrors(), stub.getNumResets());
+			System.out.println("enqueue to send: " + m.getEnqueueLatency());
+			System.out.println("send:            " + m.getSendLatency());
+			System.out.println("encode:          " + m.getEncodeLatency());
+		}
+	}
+
+	private static class ESTarget implements Target {
+
+		private final ESStubServer stub = new ESStubServer();
+		private final ESManager manager;
+		private final String payload;
+
+		private ESTarget(String target, String payload, ScheduledExecutorService scheduler) throws IOException {
+			stub.start();
+			manager = new ESManager("127.0.0.1", stub.getPort(), "user", "password");
+			if (target.equals("es-bulk")) {
+				manager.enableBulk(500, 5 * 1024 * 1024, 100, 1);
+			}
+			this.payload = payload;
+			if (scheduler == null) {
+				manager.start();
+			} else {
+				manager.startScheduled(scheduler);
+			}
+		}
+
+		public StubFaults getFaults() {
+			return stub.getFaults();
+		}
+
+		public void add(int i) {
+			manager.add(ESRequest.builder().application("load").host("load-generator").requestName("load " + i)
+					.status(ESRequestStatus.SUCCESS).timestamp(ZonedDateTime.now()).endTimestamp(ZonedDateTime.now())
+					.requestBody(payload).responseBody(payload).build());
+		}
+
+		// every document handed to the client got its answer
+		public boolean isDrained() {
+			ESMetricsSnapshot m = manager.getMetrics().snapshot();
+			ESMetricsSnapshot c = manager.getClientMetrics().snapshot();
+			return manager.getQueueSize() == 0 && m.getNumProcessed() >= m.getNumReceived()
+					&& c.getNumProcessed() >= m.getNumSuccess();
+		}
+
+		public DrainReport shutdown(long timeoutMs) {
+			return manager.shutdown(timeoutMs);
+		}
+
+		public void report() {
+			ESMetricsSnapshot m = manager.getMetrics().snapshot();
+			ESMetricsSnapshot c = manager.getClientMetrics().snapshot();
+			System.out.printf("delivered %d (stub), %d (client), dropped %d %s by the manager, %d %s by the client, "
+					+ "still queued %d%n", stub.getNumDocuments(), c.getNumSuccess(), m.getNumDropped(),
+					m.getNumDroppedByReason(), c.getNumDropped(), c.getNumDroppedByReason(), manager.getQueueSize());
+			System.out.printf("stub requests %d, errors %d, resets %d%n", stub.getNumRequests(), stub.getNumErrors(),
+					stub.getNumResets());
+			System.out.println("enqueue to send: " + m.getEnqueueLatency());
+			System.out.println("send:            " + c.getSendLatency());
+			System.out.println("encode:          " + c.getEncodeLatency());
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2021. Increff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.increff.commons.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Faults injected by the stub servers, can be changed while they run. Rates are between 0 and 1 and
+ * apply per request (per message for GELF TCP / UDP, per document inside an ES bulk):
+ * - latencyMs: added before answering
+ * - errorRate: answered with one of errorStatuses, eg. 429 and 503
+ * - resetRate: the connection is closed without an answer
+ * - slowReadBytesPerSec: if > 0, request bodies are read at about this rate
+ */
+public class StubFaults {
+
+	private volatile int latencyMs;
+	private volatile double errorRate;
+	private volatile int[] errorStatuses = { 429, 503 };
+	private volatile double resetRate;
+	private volatile int slowReadBytesPerSec;
+
+	public StubFaults setLatencyMs(int latencyMs) {
+		this.latencyMs = latencyMs;
+		return this;
+	}
+
+	public StubFaults setErrorRate(double errorRate, int... errorStatuses) {
+		this.errorRate = errorRate;
+		if (errorStatuses.length > 0) {
+			this.errorStatuses = errorStatuses;
+		}
+		return this;
+	}
+
+	public StubFaults setResetRate(double resetRate) {
+		this.resetRate = resetRate;
+		return this;
+	}
+
+	public StubFaults setSlowReadBytesPerSec(int slowReadBytesPerSec) {
+		this.slowReadBytesPerSec = slowReadBytesPerSec;
+		return this;
+	}
+
+	void delay() {
+		sleep(latencyMs);
+	}
+
+	boolean shouldReset() {
+		return resetRate > 0 && ThreadLocalRandom.current().nextDouble() < resetRate;
+	}
+
+	// The status to fail with, or 0
+	int nextErrorStatus() {
+		if (errorRate <= 0 || ThreadLocalRandom.current().nextDouble() >= errorRate) {
+			return 0;
+		}
+		int[] statuses = errorStatuses;
+		return statuses[ThreadLocalRandom.current().nextInt(statuses.length)];
+	}
+
+	// Reads all of in, as slowly as configured
+	byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		int n;
+		while ((n = read(in, chunk)) != -1) {
+			out.write(chunk, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	// Same as in.read(buf), but throttled when slow reads are on
+	int read(InputStream in, byte[] buf) throws IOException {
+		int rate = slowReadBytesPerSec;
+		if (rate <= 0) {
+			return in.read(buf);
+		}
+		// about 10 reads a second
+		int n = in.read(buf, 0, Math.max(1, Math.min(buf.length, rate / 10)));
+		if (n > 0) {
+			sleep(n * 1000L / rate);
+		}
+		return n;
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}